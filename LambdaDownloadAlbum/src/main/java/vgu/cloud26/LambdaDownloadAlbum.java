@@ -0,0 +1,548 @@
+package vgu.cloud26;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+
+/*
+WORKFLOW:
+CLIENT:
+User clicks "Download all" -> The browser sends an HTTP POST request to this Lambda's function URL.
+The JSON body contains: { "email": "user@mail.com", "token": "abc...", "keys": ["a.jpg", "b.png"], "mode": "..." }
+Without "keys" (or with "all": true) every photo of the user is included.
+'mode' is optional:
+   (missing)  -> { "url": "<presigned S3 GET URL of the archive>", "expiresAt": "...", "photos": n } is returned as JSON.
+   "redirect" -> the client is redirected (303) to the presigned URL.
+
+SERVER:
+1. Authentication Check (isValidUser): same HMAC-SHA256 token check as the other Lambdas.
+
+2. Authorization Check, one query for the whole album:
+   "SELECT S3Key FROM Photos WHERE OwnerEmail = ? AND DeletedAt IS NULL AND S3Key IN (?, ?, ...)"
+   (or "... WHERE OwnerEmail = ? AND DeletedAt IS NULL" for all photos).
+   Keys the user does not own, and deleted photos waiting for the purge, are skipped.
+
+3. ZIP archive, written to S3 while it is being built (multipart upload, see MultipartUploadStream):
+   the Lambda response is buffered by the runtime and limited to 6MB, so the archive cannot go through it.
+   - ZIP bytes are collected in a PART_SIZE buffer, every full buffer is uploaded as one part
+     -> memory stays constant however big the archive gets.
+   - S3 downloads run ahead of the ZIP writer on PREFETCH threads, at most PREFETCH objects are in memory
+     at any time.
+   - JPEG/PNG/GIF are already compressed: they are written in STORED mode (no CPU spent on deflate).
+     STORED needs the size and CRC-32 before the data, which the prefetch computes.
+   - Other files, and objects bigger than MAX_PREFETCH_SIZE, are streamed straight from S3 as DEFLATED entries.
+   If anything fails, the multipart upload is aborted (no partial archive is left) and the client gets 500.
+
+4. Response: a presigned GET URL of the archive (PRESIGN_DURATION), the browser downloads it straight from S3.
+   Archives are stored in ann-resize-bucket under "albums/<random id>.zip": a lifecycle rule on that prefix
+   (expiration after 1 day, and abort of incomplete multipart uploads) removes them.
+*/
+
+public class LambdaDownloadAlbum implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+
+    // S3 Config
+    private static final String BUCKET_NAME = "ann-webapp-bucket";
+    private static final Region AWS_REGION = Region.US_EAST_1;
+
+    // Archive Config
+    private static final String ARCHIVE_BUCKET_NAME = "ann-resize-bucket";
+    private static final String ARCHIVE_PREFIX = "albums/";
+    private static final int PREFETCH = 4;
+    private static final long MAX_PREFETCH_SIZE = 16L * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Every part but the last must be at least 5MB; 10 000 parts of 8MB = archives up to ~80GB
+    private static final int PART_SIZE = 8 * 1024 * 1024;
+    // Long enough to start the download of a big archive, too short to be shared
+    private static final Duration PRESIGN_DURATION = Duration.ofMinutes(15);
+
+    private static final S3Client s3Client = S3Client.builder()
+            .region(AWS_REGION)
+            .build();
+    private static final S3Presigner s3Presigner = S3Presigner.builder()
+            .region(AWS_REGION)
+            .build();
+
+
+    // One downloaded object, ready to be written as a STORED entry (or too big to be buffered)
+    private static final class Prefetched {
+        final String key;
+        final byte[] data;
+        final long crc;
+
+        Prefetched(String key, byte[] data, long crc) {
+            this.key = key;
+            this.data = data;
+            this.crc = crc;
+        }
+    }
+
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaDownloadAlbum", () -> {
+            Database.prime();
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            generateSecureToken("priming@cloud26", "priming", null);
+            // ZIP writer: one STORED entry (CRC-32), in memory
+            byte[] data = "priming".getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            try (ZipOutputStream zip = new ZipOutputStream(new ByteArrayOutputStream())) {
+                writeStoredEntry(zip, new Prefetched("priming.jpg", data, crc.getValue()));
+            }
+            // Presigning is local (no request): it loads the signer
+            presign(ARCHIVE_PREFIX + "priming.zip");
+        });
+    }
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        if ("OPTIONS".equalsIgnoreCase(request.getHttpMethod())) {
+            return textResponse(200, "OK");
+        }
+
+        // 1. Extract email, token, keys & mode from the JSON body
+        String email = "";
+        String token = "";
+        String mode = "";
+        List<String> requestedKeys = null;
+        try {
+            String requestBody = request.getBody();
+            if (Boolean.TRUE.equals(request.getIsBase64Encoded()) && requestBody != null) {
+                requestBody = new String(Base64.getDecoder().decode(requestBody), StandardCharsets.UTF_8);
+            }
+            if (requestBody != null && !requestBody.isEmpty()) {
+                JSONObject bodyJSON = new JSONObject(requestBody);
+                email = bodyJSON.optString("email", "");
+                token = bodyJSON.optString("token", "");
+                mode = bodyJSON.optString("mode", "");
+                JSONArray keys = bodyJSON.optJSONArray("keys");
+                if (keys != null && !bodyJSON.optBoolean("all", false)) {
+                    requestedKeys = new ArrayList<>();
+                    for (int i = 0; i < keys.length(); i++) {
+                        requestedKeys.add(keys.getString(i));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.log("JSON Parsing Error: " + e.getMessage());
+            return textResponse(400, "Error: Invalid JSON body.");
+        }
+
+        if (!isValidUser(email, token, logger)) {
+            return textResponse(401, "Unauthorized: Invalid Token");
+        }
+
+        // 2. Keep only the keys owned by the user (one query)
+        List<String> keys;
+        try {
+            keys = findOwnedKeys(email, requestedKeys);
+        } catch (Exception e) {
+            logger.log("DB Error: " + e);
+            return textResponse(500, "Error reading from the database");
+        }
+        if (keys.isEmpty()) {
+            return textResponse(404, "Error: No photos to download.");
+        }
+        logger.log("Zipping " + keys.size() + " photo(s) for " + email);
+
+        // 3. Build the ZIP archive into S3
+        String archiveKey = ARCHIVE_PREFIX + UUID.randomUUID() + ".zip";
+        try {
+            writeArchive(archiveKey, keys);
+        } catch (Exception e) {
+            logger.log("Error while zipping: " + e);
+            return textResponse(500, "Error building the archive");
+        }
+
+        // 4. Presigned URL of the archive
+        PresignedGetObjectRequest presigned = presign(archiveKey);
+        String url = presigned.url().toString();
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Access-Control-Allow-Origin", "*");
+        // The URL is only valid for a few minutes, it must not be cached
+        headers.put("Cache-Control", "no-store");
+        if ("redirect".equals(mode)) {
+            // The request is a POST, but the presigned URL only accepts GET -> 303
+            headers.put("Location", url);
+            return new APIGatewayProxyResponseEvent().withStatusCode(303).withHeaders(headers);
+        }
+
+        JSONObject body = new JSONObject();
+        body.put("url", url);
+        body.put("expiresAt", presigned.expiration().toString());
+        body.put("photos", keys.size());
+        headers.put("Content-Type", "application/json");
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withHeaders(headers)
+                .withBody(body.toString());
+    }
+
+
+    // Writes the archive of these keys to the archive bucket. Nothing is left in S3 if it fails.
+    private static void writeArchive(String archiveKey, List<String> keys) throws IOException, InterruptedException {
+        ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH);
+        MultipartUploadStream upload = new MultipartUploadStream(ARCHIVE_BUCKET_NAME, archiveKey);
+        try {
+            ZipOutputStream zip = new ZipOutputStream(upload);
+            Deque<Future<Prefetched>> window = new ArrayDeque<>();
+            int next = 0;
+            while (next < keys.size() && window.size() < PREFETCH) {
+                String key = keys.get(next++);
+                window.add(prefetcher.submit(() -> prefetch(key)));
+            }
+
+            while (!window.isEmpty()) {
+                Prefetched item = window.poll().get();
+                // A slot is free again: start the next download before writing this entry
+                if (next < keys.size()) {
+                    String key = keys.get(next++);
+                    window.add(prefetcher.submit(() -> prefetch(key)));
+                }
+
+                if (item == null) {
+                    continue;
+                }
+                if (item.data != null) {
+                    writeStoredEntry(zip, item);
+                } else {
+                    writeDeflatedEntry(zip, item.key);
+                }
+            }
+            // Writes the central directory, uploads the last part and completes the upload
+            zip.close();
+        } catch (ExecutionException e) {
+            upload.abort();
+            throw new IOException(e.getCause());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            upload.abort();
+            throw e;
+        } finally {
+            prefetcher.shutdownNow();
+        }
+    }
+
+
+    // Download a small object and compute its CRC-32 (needed in advance by STORED entries).
+    // Big or compressible objects are not buffered: returns data == null, they are streamed later.
+    // Returns null if the object disappeared from S3.
+    private static Prefetched prefetch(String key) throws IOException {
+        if (!isCompressedImage(key)) {
+            return new Prefetched(key, null, 0);
+        }
+        try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(key)
+                .build())) {
+            Long size = s3Response.response().contentLength();
+            if (size != null && size > MAX_PREFETCH_SIZE) {
+                s3Response.abort();
+                return new Prefetched(key, null, 0);
+            }
+            byte[] data = s3Response.readAllBytes();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return new Prefetched(key, data, crc.getValue());
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) return null;
+            throw e;
+        }
+    }
+
+
+    private static void writeStoredEntry(ZipOutputStream zip, Prefetched item) throws IOException {
+        ZipEntry entry = new ZipEntry(item.key);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(item.data.length);
+        entry.setCompressedSize(item.data.length);
+        entry.setCrc(item.crc);
+        zip.putNextEntry(entry);
+        zip.write(item.data);
+        zip.closeEntry();
+    }
+
+
+    // Copy the S3 body into a DEFLATED entry chunk by chunk (size & CRC go into the data descriptor after it)
+    private static void writeDeflatedEntry(ZipOutputStream zip, String key) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(key)
+                .build())) {
+            ZipEntry entry = new ZipEntry(key);
+            entry.setMethod(ZipEntry.DEFLATED);
+            // Large images are already compressed, deflating them again only costs CPU
+            zip.setLevel(isCompressedImage(key) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            zip.putNextEntry(entry);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = s3Response.read(chunk)) != -1) {
+                zip.write(chunk, 0, read);
+            }
+            zip.closeEntry();
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404) throw e;
+        }
+    }
+
+
+    private static boolean isCompressedImage(String key) {
+        String lowerKey = key.toLowerCase();
+        return lowerKey.endsWith(".jpg") || lowerKey.endsWith(".jpeg")
+                || lowerKey.endsWith(".png") || lowerKey.endsWith(".gif");
+    }
+
+
+    // OWNERSHIP CHECK
+    // requestedKeys == null -> all photos of the owner
+    private List<String> findOwnedKeys(String email, List<String> requestedKeys) throws Exception {
+        if (requestedKeys != null && requestedKeys.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT S3Key FROM Photos WHERE OwnerEmail = ? AND DeletedAt IS NULL");
+        if (requestedKeys != null) {
+            sql.append(" AND S3Key IN (");
+            for (int i = 0; i < requestedKeys.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        }
+        sql.append(" ORDER BY ID");
+
+        // Warm connection shared with the previous invocations (see Database)
+        return Database.run(conn -> {
+            List<String> keys = new ArrayList<>();
+            PreparedStatement ps = Database.prepare(conn, sql.toString());
+            ps.setString(1, email);
+            if (requestedKeys != null) {
+                for (int i = 0; i < requestedKeys.size(); i++) {
+                    ps.setString(i + 2, requestedKeys.get(i));
+                }
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    keys.add(rs.getString("S3Key"));
+                }
+            }
+            return keys;
+        });
+    }
+
+
+    // PRESIGNED URL
+    // responseContentDisposition: S3 sends this header, so the browser saves the archive under a readable name
+    private static PresignedGetObjectRequest presign(String archiveKey) {
+        return s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(PRESIGN_DURATION)
+                .getObjectRequest(GetObjectRequest.builder()
+                        .bucket(ARCHIVE_BUCKET_NAME)
+                        .key(archiveKey)
+                        .responseContentType("application/zip")
+                        .responseContentDisposition("attachment; filename=\"photos.zip\"")
+                        .build())
+                .build());
+    }
+
+    private static APIGatewayProxyResponseEvent textResponse(int statusCode, String message) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Access-Control-Allow-Origin", "*");
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(statusCode)
+                .withHeaders(headers)
+                .withBody(message);
+    }
+
+
+    // MULTIPART UPLOAD
+    // OutputStream that uploads what is written to it as the parts of one S3 object (PART_SIZE each).
+    // close() uploads the last part and completes the object, abort() drops the parts already uploaded.
+    private static final class MultipartUploadStream extends OutputStream {
+        private final String bucket;
+        private final String key;
+        private final String uploadId;
+        private final List<CompletedPart> parts = new ArrayList<>();
+        private final byte[] buffer = new byte[PART_SIZE];
+        private int buffered;
+        private boolean closed;
+
+        MultipartUploadStream(String bucket, String key) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType("application/zip")
+                    .build()).uploadId();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int copied = Math.min(length, PART_SIZE - buffered);
+                System.arraycopy(data, offset, buffer, buffered, copied);
+                buffered += copied;
+                offset += copied;
+                length -= copied;
+                if (buffered == PART_SIZE) {
+                    uploadPart();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            // The last part may be smaller than 5MB (and is never empty: a ZIP ends with its central directory)
+            if (buffered > 0) {
+                uploadPart();
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+        }
+
+        void abort() {
+            closed = true;
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (S3Exception e) {
+                // Removed by the lifecycle rule of the archive prefix anyway
+            }
+        }
+
+        private void uploadPart() {
+            int partNumber = parts.size() + 1;
+            String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .build(), RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, buffered), buffered))
+                    .eTag();
+            parts.add(CompletedPart.builder().partNumber(partNumber).eTag(eTag).build());
+            buffered = 0;
+        }
+    }
+
+
+    // CHECK CREDENTIAL
+
+    private boolean isValidUser(String email, String token, LambdaLogger logger) {
+        try {
+            if (email == null || email.isEmpty() || token == null || token.isEmpty()) return false;
+            String secretKey = getSecretKeyFromSSM(logger);
+            String expectedToken = generateSecureToken(email, secretKey, logger);
+            return token.equals(expectedToken);
+        } catch (Exception e) { return false; }
+    }
+
+    private String getSecretKeyFromSSM(LambdaLogger logger) throws Exception {
+        String parameterName = "cloud26-secret_key";
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        String url = "http://localhost:2773/systemsmanager/parameters/get/?name=" + parameterName + "&withDecryption=true";
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("X-Aws-Parameters-Secrets-Token", System.getenv("AWS_SESSION_TOKEN"))
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        JSONObject jsonResponse = new JSONObject(response.body());
+        return jsonResponse.getJSONObject("Parameter").getString("Value");
+    }
+
+    public static String generateSecureToken(String data, String key, LambdaLogger logger) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            SecretKeySpec secretKeySpec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+            mac.init(secretKeySpec);
+            byte[] hmacBytes = mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hmacBytes);
+        } catch (Exception e) { return null; }
+    }
+}
@@ -45,6 +45,14 @@ public class LambdaGenerateToken implements RequestHandler<APIGatewayProxyReques
 
   
 
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaGenerateToken", () -> {
+            generateSecureToken("priming@cloud26", "priming", null);
+            new JSONObject("{\"email\": \"priming@cloud26\"}").getString("email");
+        });
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
         LambdaLogger logger = context.getLogger();  
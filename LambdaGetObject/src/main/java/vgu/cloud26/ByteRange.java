@@ -0,0 +1,84 @@
+package vgu.cloud26;
+
+/*
+A single byte range taken from an HTTP "Range" header (RFC 9110, section 14).
+
+Supported forms (offsets are inclusive, the object has 'size' bytes):
+   bytes=500-999   -> bytes 500 to 999
+   bytes=500-      -> from byte 500 to the end
+   bytes=-500      -> the last 500 bytes (suffix range)
+
+parse() returns:
+   null          -> no usable Range header: the whole object is returned (200). Malformed headers and
+                    units other than "bytes" are ignored, as the RFC allows.
+   UNSATISFIABLE -> answer 416: multiple ranges ("bytes=0-1,5-6") are rejected on purpose, because a
+                    multipart/byteranges body cannot be passed through S3 in one GET,
+                    and ranges starting after the end of the object cannot be served.
+   a ByteRange   -> answer 206 with "Content-Range: bytes start-end/size".
+*/
+public final class ByteRange {
+
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    private final long start;
+    private final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long start() { return start; }
+    public long end() { return end; }
+    public long length() { return end - start + 1; }
+
+    // Value for the S3 GetObject 'range' parameter
+    public String toS3Range() {
+        return "bytes=" + start + "-" + end;
+    }
+
+    // Value for the "Content-Range" response header
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    // Return a range covering at most 'maxLength' bytes from the same start
+    public ByteRange limitTo(long maxLength) {
+        return length() <= maxLength ? this : new ByteRange(start, start + maxLength - 1);
+    }
+
+
+    public static ByteRange parse(String header, long size) {
+        if (header == null) return null;
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        value = value.substring(6).trim();
+
+        if (value.contains(",")) return UNSATISFIABLE;
+
+        int dash = value.indexOf('-');
+        if (dash < 0) return null;
+        String first = value.substring(0, dash).trim();
+        String last = value.substring(dash + 1).trim();
+
+        try {
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes
+                if (last.isEmpty()) return null;
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || size == 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0, size - suffixLength), size - 1);
+            }
+
+            long start = Long.parseLong(first);
+            if (start < 0) return null;
+            if (start >= size) return UNSATISFIABLE;
+            long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+            if (end < start) return null;
+            // An end past the last byte is allowed and means "until the end"
+            return new ByteRange(start, Math.min(end, size - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
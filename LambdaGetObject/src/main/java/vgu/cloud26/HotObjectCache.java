@@ -0,0 +1,193 @@
+package vgu.cloud26;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/*
+Bytes of recently served objects, kept in memory between warm invocations of LambdaGetObject,
+so popular photos are not downloaded from S3 again and again.
+
+   - Off-heap: the bytes live in direct ByteBuffers, outside the Java heap, so a full cache does not make
+     garbage collection slower. Only the small index (LinkedHashMap) is on the heap.
+   - Bounded by size: the sum of all cached objects never exceeds maxBytes.
+   - Keyed by key + ETag: get() only returns bytes whose ETag equals the current ETag of the object
+     (known from ObjectMetadataCache), a replaced object is therefore never served from the cache.
+   - Eviction: least recently used entries first.
+   - Admission (TinyLFU): when the cache is full, a new object only gets in if it was requested more often
+     than the entries it would evict. One-off downloads therefore cannot flush the popular photos out.
+     Request frequencies are estimated by a small count-min sketch that is halved periodically,
+     so old popularity fades away.
+   - Counters: hits, misses, evictions and rejected admissions (see stats()).
+*/
+public class HotObjectCache {
+
+    private static final class Entry {
+        final String eTag;
+        final ByteBuffer data;
+
+        Entry(String eTag, ByteBuffer data) {
+            this.eTag = eTag;
+            this.data = data;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private long usedBytes = 0;
+
+    // accessOrder = true -> iteration starts with the least recently used entry (the eviction victim)
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+
+    // A single object may use at most a quarter of the cache
+    public HotObjectCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+    }
+
+
+    // Returns a read-only view of the cached bytes, or null on a miss.
+    public synchronized ByteBuffer get(String key, String eTag) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.eTag != null && entry.eTag.equals(eTag)) {
+            hits.incrementAndGet();
+            return entry.data.asReadOnlyBuffer();
+        }
+        if (entry != null) {
+            // Stale version of the object, it can never be served again
+            remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+
+    // Offer the downloaded bytes to the cache. Returns true if they were admitted.
+    public synchronized boolean put(String key, String eTag, byte[] bytes) {
+        if (eTag == null || bytes.length > maxEntryBytes) {
+            return false;
+        }
+        remove(key);
+
+        // Make room: only evict entries that are less popular than the candidate
+        int candidateFrequency = sketch.frequency(key);
+        long bytesToFree = usedBytes + bytes.length - maxBytes;
+        if (bytesToFree > 0) {
+            long freeable = 0;
+            for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+                if (freeable >= bytesToFree) break;
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    rejections.incrementAndGet();
+                    return false;
+                }
+                freeable += victim.getValue().data.capacity();
+            }
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (usedBytes + bytes.length > maxBytes && iterator.hasNext()) {
+                usedBytes -= iterator.next().getValue().data.capacity();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+        data.put(bytes).flip();
+        entries.put(key, new Entry(eTag, data));
+        usedBytes += bytes.length;
+        return true;
+    }
+
+
+    // Counters since the container started
+    public synchronized JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("entries", entries.size());
+        stats.put("usedBytes", usedBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("rejections", rejections.get());
+        return stats;
+    }
+
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            usedBytes -= removed.data.capacity();
+        }
+    }
+
+
+    /*
+    Count-min sketch with 4 rows of small counters (capped at 15, like TinyLFU's 4-bit counters).
+    After 'sampleSize' increments every counter is halved ("aging").
+    */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width));
+            this.table = new byte[ROWS][size];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < ROWS; row++) {
+                int index = indexOf(hash, row);
+                if (table[row][index] < MAX_COUNT) {
+                    table[row][index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, table[row][indexOf(hash, row)]);
+            }
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
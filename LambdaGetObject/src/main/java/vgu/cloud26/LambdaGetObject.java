@@ -1,14 +1,22 @@
 package vgu.cloud26;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.Base64;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -26,15 +34,29 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse; 
-import software.amazon.awssdk.services.s3.model.S3Object; 
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
 
 /*
 WORKFLOW:
 CLIENT:
 User clicks the "Download" button -> The browser sends an HTTP PUT request to this Lambda's function URL.
-The JSON body contains: { "key": "filename.jpg", "email": "user@mail.com", "token": "abc..." }
+The JSON body contains: { "key": "filename.jpg", "email": "user@mail.com", "token": "abc...", "mode": "..." }
+'mode' is optional:
+   (missing)  -> the bytes are proxied through the Lambda as Base64 (steps 4 - 6 below).
+   "url"      -> { "url": "<presigned S3 GET URL>", "expiresAt": "..." } is returned as JSON.
+   "redirect" -> the client is redirected (302, or 303 for PUT/POST) to the presigned URL.
+   "stats"    -> counters of the hot-object cache of this container (no 'key' needed).
+Optional "width" / "height" / "fit" / "format" ask for a resized rendition instead of the original,
+generated on the first request and then served from the rendition cache in the resize bucket (see RenditionService).
+   With "url"/"redirect" the browser downloads straight from S3: no 10MB limit, no Base64 overhead,
+   and the Lambda only does the authorization. The signature covers the bucket, the key and the expiry
+   (PRESIGN_DURATION), so the URL cannot be reused for another object or after it expires.
+   This is the way to download objects over 10MB: the managed Java runtime buffers the whole Lambda response
+   (at most 6MB), so the bytes cannot be streamed through the Lambda itself.
 
 SERVER:
 1. Handle OPTIONS (CORS): 
@@ -47,17 +69,80 @@ SERVER:
    - Call generateSecureToken() with the input email & secret key.
    - Compare input token vs expected token
 
-4. Validation: Lambda scans the S3 bucket to verify the file exists and is within the size limit (10MB).
+4. Validation: Lambda looks up the metadata of the requested key only (HEAD request, see ObjectMetadataCache)
+   to verify the file exists and is within the size limit (10MB).
+   The metadata is cached between warm invocations, so repeated requests do not even need the HEAD.
 
 5. Processing (If valid user): 
    - Download the raw binary data (bytes) of the image from S3 into memory.
    - Encode this binary data into a Base64 String (text format) to send safely over JSON.
 
+   Range requests: if the request has a "Range: bytes=..." header (see ByteRange), only that part of the object
+   is downloaded from S3 and returned with 206 Partial Content + Content-Range, so interrupted downloads
+   can be resumed. A range may start anywhere in objects larger than 10MB, but at most 4MB (MAX_RANGE_SIZE) are
+   returned per request: a longer range is shortened and its Content-Range tells the client where to continue.
+   Multiple ranges and ranges past the end of the object get 416 Range Not Satisfiable.
+
+   Hot-object cache: full downloads are kept off-heap between warm invocations (see HotObjectCache),
+   keyed by key + ETag. A later request for the same version of the object (or a range of it) is answered
+   from memory without any S3 GET. The 'X-Cache' response header tells HIT or MISS.
+
+   Conditional requests: every response carries the S3 'ETag' and 'Last-Modified' of the object.
+   If the browser sends them back ("If-None-Match" / "If-Modified-Since") and the object has not changed,
+   the Lambda answers 304 Not Modified right after the metadata check, without downloading anything from S3.
+
 6. Response: Returns the Base64 String to the Frontend, allowing the browser to display the image securely.andles the response correctly.
 */
 
 public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
+    private static final String BUCKET_NAME = "ann-webapp-bucket";
+    // Declare max size image = 10MB
+    private static final int MAX_SIZE = 10 * 1024 * 1024;
+    // Max bytes per range response: Base64 (+33%) plus headers must fit in the 6MB Lambda response
+    private static final int MAX_RANGE_SIZE = 4 * 1024 * 1024;
+
+    // Created once per container and reused by warm invocations
+    private static final S3Client s3Client = S3Client.builder()
+            .region(Region.US_EAST_1)
+            .build();
+    private static final ObjectMetadataCache metadataCache = new ObjectMetadataCache(BUCKET_NAME);
+
+    // Size of the hot-object cache, environment variable HOT_CACHE_BYTES (default 64MB).
+    // Direct memory counts against the Lambda memory setting, keep it well below it.
+    private static final long HOT_CACHE_BYTES = System.getenv("HOT_CACHE_BYTES") != null
+            ? Long.parseLong(System.getenv("HOT_CACHE_BYTES"))
+            : 64L * 1024 * 1024;
+    private static final HotObjectCache hotObjectCache = new HotObjectCache(HOT_CACHE_BYTES);
+
+    private static final String RENDITION_BUCKET_NAME = "ann-resize-bucket";
+    private static final RenditionService renditionService =
+            new RenditionService(s3Client, BUCKET_NAME, RENDITION_BUCKET_NAME);
+
+    // Presigned URLs are short-lived: long enough to start the download, too short to be shared
+    private static final Duration PRESIGN_DURATION = Duration.ofMinutes(5);
+    private static final S3Presigner s3Presigner = S3Presigner.builder()
+            .region(Region.US_EAST_1)
+            .build();
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaGetObject", () -> {
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            generateSecureToken("priming@cloud26", "priming", null);
+            // Presigning is local (no request): it loads the signer
+            s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+                    .signatureDuration(PRESIGN_DURATION)
+                    .getObjectRequest(GetObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build())
+                    .build());
+        });
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
 
@@ -74,6 +159,8 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
         }
 
         String key = null;
+        String mode = "";
+        RenditionService.Rendition rendition = null;
 
         // Get the key, email & token from the JSON body
         try {
@@ -89,6 +176,10 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
                 if (bodyJSON.has("key")) {
                     key = bodyJSON.getString("key");
                 }
+                mode = bodyJSON.optString("mode", "");
+                if (key != null) {
+                    rendition = RenditionService.fromRequest(bodyJSON, key);
+                }
                 
                 String email = bodyJSON.optString("email", "");
                 String token = bodyJSON.optString("token", "");
@@ -103,6 +194,13 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
             context.getLogger().log("JSON Parsing Error: " + e.getMessage());
         }
 
+        if ("stats".equals(mode)) {
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(200)
+                    .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"))
+                    .withBody(hotObjectCache.stats().toString());
+        }
+
         // 3. Validate Key
         if (key == null || key.isEmpty()) {
             return new APIGatewayProxyResponseEvent()
@@ -110,103 +208,336 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
                     .withBody("Error: Missing 'key' in request body.");
         }
 
-        // 4. Create the connection to S3
-        String bucketName = "ann-webapp-bucket";
-        S3Client s3Client = S3Client.builder()
-                .region(Region.US_EAST_1)
-                .build();
+        // Presigned mode: authorization is done, let the client download directly from S3
+        if ("url".equals(mode) || "redirect".equals(mode)) {
+            return presignedResponse(request, key, mode, context.getLogger());
+        }
 
-        // Retrieve the list of all objects in the bucket to check if our requested 'key' exists.        
-        ListObjectsRequest listObjects = ListObjectsRequest
-                .builder()
-                .bucket(bucketName)
-                .build();
-        ListObjectsResponse res = s3Client.listObjects(listObjects);
-        List<S3Object> objects = res.contents();
-        
+        // Resized rendition instead of the original
+        if (rendition != null) {
+            return renditionResponse(request, key, rendition, context.getLogger());
+        }
 
-         // Declare max size image = 10MB
-        int maxSize = 10 * 1024 * 1024;
-        Boolean found = false;
-        Boolean validSize = false;
-        // mimeType : image/png , image/jpeg, text/html , application/octet-stream (default mime type)... 
-        String mimeType = "application/octet-stream";
+        // 4. Look up the metadata of the requested key (HEAD, or the cached result of a previous HEAD),
+        //    then download the object (or the requested range of it).
+        String rangeHeader = getHeader(request, "Range");
+        ObjectMetadataCache.ObjectMetadata metadata;
+        ByteRange range;
+        // Create a byte array to hold the file data
+        byte[] buffer;
+        boolean cacheHit = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                metadata = metadataCache.lookup(s3Client, key);
+                if (metadata == null) {
+                    return notFound();
+                }
 
-        // Loop through every file in the bucket to find the matching key
-        for (S3Object object : objects) {
-            if (object.key().equals(key)) {
-                found = true;
-                // Validate size
-                long objectSize = object.size(); 
-                if (objectSize < maxSize){
-                    validSize = true;
+                // The browser already has this version of the object -> no download at all
+                if (isNotModified(request, metadata.eTag(), metadata.lastModified())) {
+                    Map<String, String> headers = validatorHeaders(metadata);
+                    return new APIGatewayProxyResponseEvent()
+                            .withStatusCode(304)
+                            .withHeaders(headers);
+                }
+
+                range = ByteRange.parse(rangeHeader, metadata.size());
+                if (range == ByteRange.UNSATISFIABLE) {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Range", "bytes */" + metadata.size());
+                    headers.put("Accept-Ranges", "bytes");
+                    return new APIGatewayProxyResponseEvent()
+                            .withStatusCode(416)
+                            .withHeaders(headers)
+                            .withBody("Error: Range Not Satisfiable.");
+                }
+                if (range != null) {
+                    // Big objects can be fetched piece by piece, but never more than MAX_RANGE_SIZE per response
+                    range = range.limitTo(MAX_RANGE_SIZE);
+                } else if (metadata.size() >= MAX_SIZE) {
+                    // Only proceed to get the whole object if size is valid
+                    return notFound();
                 }
 
-                // Determine mimeType based on file extension
-                // lastIndexOf('.') finds the index of the last dot 
-                int lastDotIndex = key.lastIndexOf('.');
-                // ensure the dot is not the first (.gitignore) or last character
-                if (lastDotIndex > 0 && lastDotIndex < key.length() - 1) {
-                    // Get the extension part AND convert to LowerCase (e.g. JPG -> jpg)
-                    String extension = key.substring(lastDotIndex + 1).toLowerCase();
-                    
-                    switch (extension) {
-                        case "png" -> mimeType = "image/png";
-                        case "html" -> mimeType = "text/html";
-                        case "jpg", "jpeg" -> mimeType = "image/jpeg";
-                        default -> { }
+                // Same key and same ETag in memory -> no S3 GET
+                ByteBuffer cached = hotObjectCache.get(key, metadata.eTag());
+                if (cached != null) {
+                    if (range != null) {
+                        cached = cached.slice((int) range.start(), (int) range.length());
                     }
+                    buffer = new byte[cached.remaining()];
+                    cached.get(buffer);
+                    cacheHit = true;
+                    break;
+                }
+
+                try {
+                    buffer = downloadObject(key, metadata.eTag(), range);
+                    if (range == null) {
+                        hotObjectCache.put(key, metadata.eTag(), buffer);
+                    }
+                    break;
+                } catch (S3Exception e) {
+                    // 412 Precondition Failed: the object was replaced after its metadata was cached.
+                    // Forget the stale entry, look the key up again and retry once.
+                    if (e.statusCode() != 412 || attempt > 0) throw e;
+                    metadataCache.invalidate(key);
                 }
-                
-                break; // Found the key, exit the loop
             }
+        } catch (S3Exception | IOException ex) {
+            context.getLogger().log("S3 Error: " + ex);
+            return new APIGatewayProxyResponseEvent().withStatusCode(500).withBody("Error reading from S3");
         }
+        String mimeType = resolveMimeType(key, metadata.contentType());
 
+        // JSON requires text data, but images are binary data.
+        // Base64 encoder - convert the byte array (binary) into String.
+        // Frontend will decode this String back to an image later.   
+        String encodedString = Base64.getEncoder().encodeToString(buffer);
 
-        String encodedString ;
-        // Only proceed to get the object if it was found and size is valid
-        if (found && validSize) {
-            GetObjectRequest s3Request
-                    = GetObjectRequest.builder()
-                            .bucket(bucketName)
-                            .key(key)
-                            .build();
 
-           // Create a byte array to hold the file data                 
-           byte[] buffer ; 
+        Map<String, String> headers = validatorHeaders(metadata);
+        headers.put("Content-Type", mimeType);
+        // Tell the client it may resume / split the download with Range requests
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("X-Cache", cacheHit ? "HIT" : "MISS");
 
-            // s3Client.getObject() - opens a stream to download data from S3.
-            // Using "try(...)" ensures the stream is automatically closed after reading to prevent memory leaks.
-            try (ResponseInputStream<GetObjectResponse> s3Response
-                    = s3Client.getObject(s3Request)) {
+        APIGatewayProxyResponseEvent response
+                = new APIGatewayProxyResponseEvent();
+        if (range != null) {
+            response.setStatusCode(206);
+            headers.put("Content-Range", range.toContentRange(metadata.size()));
+        } else {
+            response.setStatusCode(200);
+        }
+        response.setBody(encodedString);
+        response.withIsBase64Encoded(true);
+        response.setHeaders(headers);
+        return response;
+    }
 
-                // Read ALL bytes from the S3 stream and store them into the 'buffer' (RAM of the Lambda).   
-                buffer = s3Response.readAllBytes();
 
-            } catch (IOException ex) {
-                context.getLogger().log("IOException: " + ex);
-                return new APIGatewayProxyResponseEvent().withStatusCode(500).withBody("Error reading from S3");
-            }        
+    // PRESIGNED DOWNLOAD
+    private APIGatewayProxyResponseEvent presignedResponse(APIGatewayProxyRequestEvent request, String key,
+            String mode, LambdaLogger logger) {
+        ObjectMetadataCache.ObjectMetadata metadata;
+        try {
+            metadata = metadataCache.lookup(s3Client, key);
+        } catch (S3Exception e) {
+            logger.log("S3 Error: " + e);
+            return new APIGatewayProxyResponseEvent().withStatusCode(500).withBody("Error reading from S3");
+        }
+        if (metadata == null) {
+            return notFound();
+        }
 
-            // JSON requires text data, but images are binary data.
-            // Base64 encoder - convert the byte array (binary) into String.
-            // Frontend will decode this String back to an image later.   
-            encodedString = Base64.getEncoder().encodeToString(buffer);
+        // responseContentType: S3 sends this Content-Type, so the browser displays the image instead of saving it
+        GetObjectPresignRequest presignRequest = GetObjectPresignRequest.builder()
+                .signatureDuration(PRESIGN_DURATION)
+                .getObjectRequest(GetObjectRequest.builder()
+                        .bucket(BUCKET_NAME)
+                        .key(key)
+                        .responseContentType(resolveMimeType(key, metadata.contentType()))
+                        .build())
+                .build();
+        PresignedGetObjectRequest presigned = s3Presigner.presignGetObject(presignRequest);
+        String url = presigned.url().toString();
+
+        Map<String, String> headers = new HashMap<>();
+        // The URL is only valid for a few minutes, it must not be cached
+        headers.put("Cache-Control", "no-store");
+
+        if ("redirect".equals(mode)) {
+            headers.put("Location", url);
+            // 302 keeps the method of a PUT/POST request, but the presigned URL only accepts GET -> use 303
+            String method = request.getHttpMethod();
+            boolean isGet = method == null || "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(isGet ? 302 : 303)
+                    .withHeaders(headers);
+        }
 
-        } else {
+        JSONObject body = new JSONObject();
+        body.put("url", url);
+        body.put("expiresAt", presigned.expiration().toString());
+        headers.put("Content-Type", "application/json");
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withHeaders(headers)
+                .withBody(body.toString());
+    }
+
+
+    // RENDITION
+    private APIGatewayProxyResponseEvent renditionResponse(APIGatewayProxyRequestEvent request, String key,
+            RenditionService.Rendition rendition, LambdaLogger logger) {
+        try {
+            ObjectMetadataCache.ObjectMetadata original = metadataCache.lookup(s3Client, key);
+            if (original == null) {
+                return notFound();
+            }
+
+            // The rendition changes only if the original or the parameters change
+            String eTag = rendition.eTag(original.eTag());
+            Map<String, String> headers = new HashMap<>();
+            headers.put("ETag", eTag);
+            headers.put("Access-Control-Expose-Headers", "ETag, X-Cache");
+            if (isNotModified(request, eTag, original.lastModified())) {
+                return new APIGatewayProxyResponseEvent().withStatusCode(304).withHeaders(headers);
+            }
+
+            String cacheKey = rendition.cacheKey(key, original.eTag());
+            byte[] bytes;
+            ByteBuffer cached = hotObjectCache.get(cacheKey, eTag);
+            if (cached != null) {
+                bytes = new byte[cached.remaining()];
+                cached.get(bytes);
+                headers.put("X-Cache", "HIT");
+            } else {
+                bytes = renditionService.getOrCreate(key, original, rendition);
+                if (bytes == null) {
+                    return new APIGatewayProxyResponseEvent()
+                            .withStatusCode(415)
+                            .withBody("Error: No rendition available for this file.");
+                }
+                hotObjectCache.put(cacheKey, eTag, bytes);
+                headers.put("X-Cache", "MISS");
+            }
+
+            headers.put("Content-Type", rendition.mimeType());
             return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(404)
-                    .withBody("Error: File not found or size exceeds limit.");
+                    .withStatusCode(200)
+                    .withHeaders(headers)
+                    .withBody(Base64.getEncoder().encodeToString(bytes))
+                    .withIsBase64Encoded(true);
+        } catch (S3Exception | IOException ex) {
+            // 412: the original changed while the rendition was generated -> forget its metadata
+            metadataCache.invalidate(key);
+            logger.log("Rendition Error: " + ex);
+            return new APIGatewayProxyResponseEvent().withStatusCode(500).withBody("Error reading from S3");
         }
+    }
 
 
-        APIGatewayProxyResponseEvent response
-                = new APIGatewayProxyResponseEvent();
-        response.setStatusCode(200);
-        response.setBody(encodedString);
-        response.withIsBase64Encoded(true);
-        response.setHeaders(java.util.Collections.singletonMap("Content-Type", mimeType));
-        return response;
+    // CONDITIONAL GET
+    // If-None-Match wins over If-Modified-Since when both are sent (RFC 9110, section 13.2.2).
+    private static boolean isNotModified(APIGatewayProxyRequestEvent request, String currentETag, Instant lastModified) {
+        String ifNoneMatch = getHeader(request, "If-None-Match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.trim().equals("*")) return true;
+            String eTag = opaqueTag(currentETag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                if (opaqueTag(candidate).equals(eTag)) return true;
+            }
+            return false;
+        }
+
+        String ifModifiedSince = getHeader(request, "If-Modified-Since");
+        if (ifModifiedSince != null && lastModified != null) {
+            try {
+                Instant since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                // HTTP dates have a precision of one second
+                return !lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+
+    // If-None-Match uses the weak comparison: W/"abc" matches "abc"
+    private static String opaqueTag(String eTag) {
+        if (eTag == null) return "";
+        String tag = eTag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+
+    // ETag + Last-Modified of the object, sent with 200, 206 and 304 responses.
+    // Access-Control-Expose-Headers lets the Frontend JavaScript read the ETag to send it back later.
+    private static Map<String, String> validatorHeaders(ObjectMetadataCache.ObjectMetadata metadata) {
+        Map<String, String> headers = new HashMap<>();
+        if (metadata.eTag() != null) {
+            headers.put("ETag", metadata.eTag());
+        }
+        if (metadata.lastModified() != null) {
+            headers.put("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(metadata.lastModified().atZone(ZoneOffset.UTC)));
+        }
+        headers.put("Access-Control-Expose-Headers", "ETag, Last-Modified, Content-Range, X-Cache");
+        return headers;
+    }
+
+
+    private static APIGatewayProxyResponseEvent notFound() {
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(404)
+                .withBody("Error: File not found or size exceeds limit.");
+    }
+
+
+    // Header names are case-insensitive, and Lambda function URLs deliver them in lower case
+    private static String getHeader(APIGatewayProxyRequestEvent request, String name) {
+        Map<String, String> headers = request.getHeaders();
+        if (headers == null) return null;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+
+
+
+    // DOWNLOAD
+    // "If-Match: <ETag>" makes S3 reject the request (412) when the object changed since its metadata was cached,
+    // so the size check above always applies to the bytes that are actually returned.
+    // 'range' is null for the whole object.
+    private byte[] downloadObject(String key, String eTag, ByteRange range) throws IOException {
+        GetObjectRequest s3Request = GetObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(key)
+                .ifMatch(eTag)
+                .range(range != null ? range.toS3Range() : null)
+                .build();
+
+        // s3Client.getObject() - opens a stream to download data from S3.
+        // Using "try(...)" ensures the stream is automatically closed after reading to prevent memory leaks.
+        try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(s3Request)) {
+            // Read ALL bytes from the S3 stream and store them into the RAM of the Lambda.
+            return s3Response.readAllBytes();
+        }
+    }
+
+
+    // mimeType : image/png , image/jpeg, text/html , application/octet-stream (default mime type)... 
+    // Use the Content-Type stored in S3 when it is meaningful, otherwise guess it from the file extension
+    // (objects uploaded by LambdaUploadObject have no Content-Type, S3 reports "binary/octet-stream").
+    private static String resolveMimeType(String key, String storedContentType) {
+        if (storedContentType != null && !storedContentType.isEmpty()
+                && !storedContentType.endsWith("/octet-stream")) {
+            return storedContentType;
+        }
+
+        String mimeType = "application/octet-stream";
+        // lastIndexOf('.') finds the index of the last dot 
+        int lastDotIndex = key.lastIndexOf('.');
+        // ensure the dot is not the first (.gitignore) or last character
+        if (lastDotIndex > 0 && lastDotIndex < key.length() - 1) {
+            // Get the extension part AND convert to LowerCase (e.g. JPG -> jpg)
+            String extension = key.substring(lastDotIndex + 1).toLowerCase();
+
+            switch (extension) {
+                case "png" -> mimeType = "image/png";
+                case "html" -> mimeType = "text/html";
+                case "jpg", "jpeg" -> mimeType = "image/jpeg";
+                default -> { }
+            }
+        }
+        return mimeType;
     }
 
 
@@ -0,0 +1,114 @@
+package vgu.cloud26;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/*
+Metadata (existence, size, content type, ETag) of the objects served by LambdaGetObject.
+
+Instead of listing the whole bucket, one HEAD request is sent for the requested key only,
+so the cost no longer depends on the number of objects in the bucket.
+
+The result is kept in a small in-memory cache that survives between warm invocations
+(static instance in LambdaGetObject):
+   - bounded: at most MAX_ENTRIES keys, the least recently used key is evicted first.
+   - TTL: an entry is trusted for TTL_MILLIS only, then S3 is asked again.
+   - ETag: the download is sent with "If-Match: <ETag>". If the object was replaced in the meantime,
+     S3 answers 412 -> the caller calls invalidate() and looks the key up again.
+*/
+public class ObjectMetadataCache {
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long TTL_MILLIS = 60_000;
+
+    // Immutable snapshot of the HEAD response
+    public static final class ObjectMetadata {
+        private final String key;
+        private final String eTag;
+        private final long size;
+        private final String contentType;
+        private final Instant lastModified;
+        private final long fetchedAt;
+
+        ObjectMetadata(String key, String eTag, long size, String contentType, Instant lastModified, long fetchedAt) {
+            this.key = key;
+            this.eTag = eTag;
+            this.size = size;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public String key() { return key; }
+        public String eTag() { return eTag; }
+        public long size() { return size; }
+        public String contentType() { return contentType; }
+        public Instant lastModified() { return lastModified; }
+    }
+
+    private final String bucketName;
+
+    // accessOrder = true -> iteration order is "least recently used first", which removeEldestEntry() evicts
+    private final Map<String, ObjectMetadata> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ObjectMetadata> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public ObjectMetadataCache(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+
+    // Returns the metadata of the key, or null if the object does not exist.
+    public ObjectMetadata lookup(S3Client s3Client, String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            ObjectMetadata cached = entries.get(key);
+            if (cached != null && now - cached.fetchedAt < TTL_MILLIS) {
+                return cached;
+            }
+        }
+
+        HeadObjectResponse head;
+        try {
+            head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            invalidate(key);
+            return null;
+        } catch (S3Exception e) {
+            // HEAD responses have no body, a missing key may also surface as a plain 404
+            if (e.statusCode() == 404) {
+                invalidate(key);
+                return null;
+            }
+            throw e;
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata(key, head.eTag(), head.contentLength(),
+                head.contentType(), head.lastModified(), now);
+        synchronized (entries) {
+            entries.put(key, metadata);
+        }
+        return metadata;
+    }
+
+
+    // Drop the cached entry, e.g. after S3 answered 412 (ETag changed) for a download.
+    public void invalidate(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+}
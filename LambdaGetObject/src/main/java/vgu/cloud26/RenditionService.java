@@ -0,0 +1,231 @@
+package vgu.cloud26;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.json.JSONObject;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/*
+Resized renditions of the original photos, generated on demand for LambdaGetObject.
+
+Request parameters (JSON body): "width", "height", "fit" ("contain" | "cover"), "format" ("jpg" | "png").
+They are normalized to a small allowed set, so different clients share the same cached files:
+   - width / height are rounded UP to the next ALLOWED_SIZES value (largest value if bigger), 0 = "auto".
+   - fit: "contain" (default) keeps the whole image inside the box,
+          "cover" fills the whole box and crops the center (needs width AND height).
+   - format: "jpg" or "png", by default the format of the original.
+Images are never enlarged.
+
+Rendition cache: the result is stored in the resize bucket under a deterministic key
+   renditions/<key>/<width>x<height>-<fit>/<ETag of the original>.<format>
+so later requests are served straight from there. The ETag makes a replaced original
+automatically use new renditions (the old ones are just never read again).
+All renditions of a photo share the prefix "renditions/<key>/": the purge of LambdaSecureDeleteObject
+deletes them with the original and the thumbnail.
+*/
+public class RenditionService {
+
+    private static final int[] ALLOWED_SIZES = { 160, 320, 640, 1280 };
+    private static final float JPEG_QUALITY = 0.85f;
+    // Largest original that will be decoded (a decoded image needs ~4 bytes per pixel)
+    private static final long MAX_SOURCE_SIZE = 25L * 1024 * 1024;
+
+    public static final class Rendition {
+        private final int width;
+        private final int height;
+        private final String fit;
+        private final String format;
+
+        Rendition(int width, int height, String fit, String format) {
+            this.width = width;
+            this.height = height;
+            this.fit = fit;
+            this.format = format;
+        }
+
+        public int width() { return width; }
+        public int height() { return height; }
+        public String fit() { return fit; }
+        public String format() { return format; }
+
+        public String mimeType() {
+            return "png".equals(format) ? "image/png" : "image/jpeg";
+        }
+
+        // Deterministic S3 key of this rendition for one version (ETag) of the original
+        public String cacheKey(String key, String originalETag) {
+            return "renditions/" + key + "/" + width + "x" + height + "-" + fit + "/" + plainTag(originalETag) + "." + format;
+        }
+
+        // ETag sent to the client: changes with the original and with the parameters
+        public String eTag(String originalETag) {
+            return "\"" + plainTag(originalETag) + "-" + width + "x" + height + "-" + fit + "." + format + "\"";
+        }
+    }
+
+    private final S3Client s3Client;
+    private final String sourceBucket;
+    private final String cacheBucket;
+
+    public RenditionService(S3Client s3Client, String sourceBucket, String cacheBucket) {
+        this.s3Client = s3Client;
+        this.sourceBucket = sourceBucket;
+        this.cacheBucket = cacheBucket;
+    }
+
+
+    // Returns null when the body does not ask for a rendition (no width / height).
+    public static Rendition fromRequest(JSONObject body, String key) {
+        int width = normalizeSize(body.optInt("width", 0));
+        int height = normalizeSize(body.optInt("height", 0));
+        if (width == 0 && height == 0) {
+            return null;
+        }
+
+        String fit = "cover".equalsIgnoreCase(body.optString("fit", "")) && width > 0 && height > 0
+                ? "cover" : "contain";
+
+        String format = body.optString("format", "").toLowerCase();
+        if (format.equals("jpeg")) format = "jpg";
+        if (!format.equals("jpg") && !format.equals("png")) {
+            format = key.toLowerCase().endsWith(".png") ? "png" : "jpg";
+        }
+        return new Rendition(width, height, fit, format);
+    }
+
+
+    private static int normalizeSize(int requested) {
+        if (requested <= 0) return 0;
+        for (int allowed : ALLOWED_SIZES) {
+            if (requested <= allowed) return allowed;
+        }
+        return ALLOWED_SIZES[ALLOWED_SIZES.length - 1];
+    }
+
+
+    // Rendition bytes from the cache bucket, generated from the original (and cached) on a miss.
+    // Returns null if the original is too big to be decoded or is not a readable image.
+    public byte[] getOrCreate(String key, ObjectMetadataCache.ObjectMetadata original, Rendition rendition)
+            throws IOException {
+        String cacheKey = rendition.cacheKey(key, original.eTag());
+
+        try (ResponseInputStream<GetObjectResponse> cached = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(cacheBucket)
+                .key(cacheKey)
+                .build())) {
+            return cached.readAllBytes();
+        } catch (NoSuchKeyException e) {
+            // Cache miss -> generate below
+        }
+
+        if (original.size() > MAX_SOURCE_SIZE) {
+            return null;
+        }
+        BufferedImage source;
+        try (ResponseInputStream<GetObjectResponse> originalStream = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(sourceBucket)
+                .key(key)
+                .ifMatch(original.eTag())
+                .build())) {
+            source = ImageIO.read((InputStream) originalStream);
+        }
+        if (source == null) {
+            return null;
+        }
+
+        byte[] bytes = encode(resize(source, rendition), rendition.format());
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(cacheBucket)
+                        .key(cacheKey)
+                        .contentType(rendition.mimeType())
+                        .build(),
+                RequestBody.fromBytes(bytes));
+        return bytes;
+    }
+
+
+    private static BufferedImage resize(BufferedImage source, Rendition rendition) {
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        // 0 = no limit in this direction
+        float scaleX = rendition.width() > 0 ? (float) rendition.width() / srcWidth : Float.MAX_VALUE;
+        float scaleY = rendition.height() > 0 ? (float) rendition.height() / srcHeight : Float.MAX_VALUE;
+
+        // contain: the smaller factor so the whole image fits, cover: the larger one so the box is filled
+        float scale = "cover".equals(rendition.fit()) ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY);
+        // Never enlarge
+        scale = Math.min(scale, 1f);
+        int scaledWidth = Math.max(1, Math.round(srcWidth * scale));
+        int scaledHeight = Math.max(1, Math.round(srcHeight * scale));
+
+        int width = scaledWidth;
+        int height = scaledHeight;
+        if ("cover".equals(rendition.fit())) {
+            width = Math.min(scaledWidth, rendition.width());
+            height = Math.min(scaledHeight, rendition.height());
+        }
+
+        boolean png = "png".equals(rendition.format());
+        BufferedImage target = new BufferedImage(width, height,
+                png ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        if (!png) {
+            // JPEG has no transparency: paint a white background first (same as LambdaResizer)
+            graphics.setPaint(Color.white);
+            graphics.fillRect(0, 0, width, height);
+        }
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        // For "cover" the scaled image is centered, the parts outside the box are cropped
+        graphics.drawImage(source, (width - scaledWidth) / 2, (height - scaledHeight) / 2,
+                scaledWidth, scaledHeight, null);
+        graphics.dispose();
+        return target;
+    }
+
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if ("png".equals(format)) {
+            ImageIO.write(image, "png", outputStream);
+            return outputStream.toByteArray();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+
+
+    // S3 ETags are quoted ("abc..."), multipart ones contain a dash: keep only characters safe in a key
+    private static String plainTag(String eTag) {
+        return eTag == null ? "none" : eTag.replaceAll("[^A-Za-z0-9-]", "");
+    }
+}
@@ -5,33 +5,148 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.Properties;
+import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.rds.RdsUtilities;
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 
 /*
  * WORKFLOW:
- * 1. Frontend sends a GET request to retrieve the list of photos.
- * 2. Lambda connects to the RDS MySQL database using IAM Authentication.
- * 3. Executes the SQL query "SELECT * FROM Photos".
- * 4. Converts the result set into a JSON Array.
- * 5. Returns the JSON Array to the Frontend for rendering.
+ * 1. Frontend sends a PUT/POST request to retrieve one page of the list of photos.
+ *    JSON body: { "email": "...", "token": "...", "cursor": "...", "limit": 50, "scope": "all" | "mine" }
+ *      limit  - page size, DEFAULT_PAGE_SIZE by default, at most MAX_PAGE_SIZE.
+ *      cursor - the 'nextCursor' of the previous page (opaque to the client).
+ *      scope  - "all" (default): the caller's own photos + every public photo,
+ *               "mine": only the caller's own photos.
+ *      q      - optional search text, see SEARCH below.
+ *      fields - optional projection, e.g. "S3Key,Description": only these columns are read and returned
+ *               (any of ID, Description, S3Key, OwnerEmail, Visibility, Placeholder; all by default).
+ *      fresh  - optional, true: read the database even when a snapshot exists (see SNAPSHOT below).
+ *    'limit', 'cursor', 'scope', 'q', 'fields' and 'fresh' are also accepted in the query string.
+ * 2. Authentication Check (isValidUser): same HMAC-SHA256 token check as the other Lambdas.
+ *    Photos are filtered here, on the server: rows the caller may not see are never read nor sent.
+ * 3. Listing pages are read from the S3 snapshot when there is one (see SNAPSHOT below), otherwise
+ *    Lambda connects to the RDS MySQL database using IAM Authentication
+ *    (the connection is kept open between warm invocations, see Database).
+ * 4. Executes a keyset pagination query, one index range scan per branch:
+ *      (SELECT ... WHERE OwnerEmail = ? AND ID > ? ORDER BY ID LIMIT ?)       -> index (OwnerEmail, ID)
+ *      UNION
+ *      (SELECT ... WHERE Visibility = 'public' AND ID > ? ORDER BY ID LIMIT ?) -> index (Visibility, ID)
+ *      ORDER BY ID LIMIT ?
+ *    Each branch starts right after the cursor inside its own index and stops after one page,
+ *    so a page costs the same no matter how many photos the other users have.
+ *    UNION (not UNION ALL) removes the caller's own public photos, found by both branches.
+ *    One row more than the page size is read, to know whether a next page exists.
+ * 5. Streams the result set (one row at a time) and writes each row as JSON straight into the
+ *    response buffer (PageWriter), so memory holds one page of JSON text, not rows + objects + text.
+ *    Each item also carries the 'Placeholder' (tiny data URI written by LambdaResizer),
+ *    so the Frontend can paint previews without any extra request.
+ * 6. Returns { "items": [...], "nextCursor": "..." } to the Frontend for rendering.
+ *    'nextCursor' is null on the last page.
+ *    Bodies of MIN_COMPRESSED_SIZE bytes or more are compressed when the client accepts it
+ *    ("Accept-Encoding: gzip" / "deflate"); browsers decompress them transparently.
+ *
+ * CATALOG VERSION (ETag / 304):
+ *    Before reading Photos, the single row of CatalogVersion is read. Every write to Photos increments it.
+ *    The response carries ETag = version + hash of the request parameters, and the serialized page is kept
+ *    in memory (ListingCache) under the same version:
+ *      - "If-None-Match" equal to the current ETag -> 304 without a body,
+ *      - page already serialized at the current version -> returned from memory (X-Cache: HIT),
+ *    so an unchanged catalog costs one primary key lookup instead of the page query.
+ *
+ * SNAPSHOT (X-Listing-Source: SNAPSHOT / DATABASE):
+ *    LambdaPublishSnapshot publishes the whole listing in S3 (one file of public photos + one file per owner)
+ *    after uploads and every minute. Listing pages are built from those files (SnapshotReader) with the same
+ *    cursor, so reads do not open database connections and scale independently of RDS.
+ *    The snapshot version is the CatalogVersion it was read at, used for the ETag and the ListingCache.
+ *    The database is read instead for searches, for "fresh" requests (the Frontend sends it for a while after
+ *    its own upload / delete, until the snapshot has caught up), and when no snapshot can be read.
+ *
+ * SEARCH ("q"):
+ *    The text is split into words (letters, digits, '_'), like the MySQL full-text parser does, and every word
+ *    becomes a required prefix term: "beach 202" -> "+beach* +202*" (BOOLEAN MODE).
+ *    MATCH ... AGAINST is answered by the FULLTEXT index on (Description, SearchKey), so only the matching
+ *    rows are read, and the relevance it returns is used to rank them (best first, newest first on ties).
+ *    Words shorter than MIN_SEARCH_WORD_LENGTH are skipped (innodb_ft_min_token_size, they are not indexed).
+ *    Ranked results cannot be paged by ID, so the search cursor is a position in the ranking;
+ *    results are limited to the first MAX_SEARCH_RESULTS to keep deep pages cheap.
+ *
+ * Required schema (applied by LambdaMigrateSchema):
+ *      ALTER TABLE Photos ADD COLUMN Visibility VARCHAR(10) NOT NULL DEFAULT 'private';
+ *      CREATE INDEX idx_photos_owner_id ON Photos (OwnerEmail, ID);
+ *      CREATE INDEX idx_photos_visibility_id ON Photos (Visibility, ID);
+ *      ALTER TABLE Photos ADD COLUMN SearchKey VARCHAR(255) GENERATED ALWAYS AS (S3Key) STORED;
+ *      ALTER TABLE Photos ADD FULLTEXT INDEX ft_photos_description_key (Description, SearchKey);
+ *      CREATE TABLE CatalogVersion (ID INT PRIMARY KEY, Version BIGINT NOT NULL);
+ *      INSERT INTO CatalogVersion (ID, Version) VALUES (1, 0);
+ *      ALTER TABLE Photos ADD COLUMN DeletedAt TIMESTAMP NULL;   (soft delete, see LambdaSecureDeleteObject)
  */
 
 public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
-    private static final String RDS_INSTANCE_HOSTNAME = "database-1.cc38mew6e9au.us-east-1.rds.amazonaws.com";
-    private static final int RDS_INSTANCE_PORT = 3306;
-    private static final String DB_USER = "cloud26";
-    private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+    // Pages already serialized, reused by warm invocations while the catalog version is unchanged
+    private static final ListingCache listingCache = new ListingCache();
+
+    // Listing snapshot published in S3 by LambdaPublishSnapshot
+    private static final SnapshotReader snapshotReader = new SnapshotReader();
+
+    // Pagination Config
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+
+    // Fields a client can ask for ("fields"), the JSON names are the column names
+    private static final List<String> PHOTO_FIELDS =
+            List.of("ID", "Description", "S3Key", "OwnerEmail", "Visibility", "Placeholder");
+
+    // Search Config
+    private static final int MIN_SEARCH_WORD_LENGTH = 3;
+    private static final int MAX_SEARCH_WORDS = 8;
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    // SearchKey: S3Key in the case-insensitive collation of Description (S3Key itself compares bytes)
+    private static final String MATCH = "MATCH (Description, SearchKey) AGAINST (? IN BOOLEAN MODE)";
+
+    // Compression Config: smaller bodies are sent as they are (gzip header + Base64 would make them bigger)
+    private static final int MIN_COMPRESSED_SIZE = 1024;
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaGetPhotosDB", () -> {
+            Database.prime();
+            // Snapshot manifest (S3 client), JSON and gzip of a response larger than MIN_COMPRESSED_SIZE
+            snapshotReader.manifest();
+            generateSecureToken("priming@cloud26", "priming", null);
+            JSONArray items = new JSONArray();
+            for (int i = 0; i < 50; i++) {
+                items.put(new JSONObject().put("ID", i).put("S3Key", "priming-" + i + ".jpg"));
+            }
+            compress(buildResponse(200, new JSONObject().put("items", items).toString()), negotiateEncoding("gzip"));
+        });
+    }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
@@ -50,76 +165,450 @@ public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestE
 
 
         LambdaLogger logger = context.getLogger();
-        JSONArray items = new JSONArray();
 
+        JSONObject body;
         try {
-            /* Load the jdbc driver class into memory to ensures the driver 
-               is registered with the DriverManager before use. */
-            // Acts as a "Translator" enabling the Java application to communicate with the MySQL database.
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            
-            // Establish the database connection with "Try-with-resources" syntax.
-            // "Try-with-resources" : Automatically closes the Connecion when execution finishes (even if an error occurs).
-            try (Connection mySQLClient = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
-                 // Prepare the SQL statement with placeholders (?) to prevent SQL Injection attacks.
-                 PreparedStatement st = mySQLClient.prepareStatement("SELECT * FROM Photos");
-                 ResultSet rs = st.executeQuery()) {
-
-                while (rs.next()) {
-                    JSONObject item = new JSONObject();
-                    item.put("ID", rs.getInt("ID"));
-                    item.put("Description", rs.getString("Description"));
-                    item.put("S3Key", rs.getString("S3Key"));
-                    item.put("OwnerEmail", rs.getString("OwnerEmail"));
-                    items.put(item);
+            body = parseBody(request);
+        } catch (Exception ex) {
+            logger.log("JSON Parsing Error: " + ex.getMessage());
+            return buildResponse(400, "{\"error\": \"Invalid JSON body\"}");
+        }
+
+        // Only authenticated users can list photos
+        String email = body.optString("email", "");
+        if (!isValidUser(email, body.optString("token", ""), logger)) {
+            return buildResponse(401, "{\"error\": \"Unauthorized: Invalid or missing token\"}");
+        }
+
+        // Read the page parameters
+        int pageSize;
+        long position;
+        boolean onlyMine;
+        String searchExpression;
+        List<String> fields;
+        try {
+            String limit = getParameter(request, body, "limit");
+            pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(limit)));
+            onlyMine = "mine".equalsIgnoreCase(getParameter(request, body, "scope"));
+            String search = getParameter(request, body, "q");
+            searchExpression = search != null ? toSearchExpression(search) : null;
+            // Listing: ID of the last row already sent, search: number of results already sent
+            position = decodeCursor(getParameter(request, body, "cursor"), search != null ? "pos:" : "id:");
+            fields = parseFields(getParameter(request, body, "fields"));
+        } catch (IllegalArgumentException ex) {
+            return buildResponse(400, "{\"error\": \"Invalid 'limit', 'cursor' or 'fields'\"}");
+        }
+        String encoding = negotiateEncoding(getHeader(request, "Accept-Encoding"));
+        boolean searching = searchExpression != null;
+
+        // Nothing searchable in the text (only short words / punctuation) -> no results
+        if (searching && (searchExpression.isEmpty() || position >= MAX_SEARCH_RESULTS)) {
+            return compress(buildResponse(200, new PageWriter(fields, true, pageSize).finish(null)), encoding);
+        }
+
+        String cacheKey = email + "|" + onlyMine + "|" + searchExpression + "|" + position + "|" + pageSize + "|" + fields;
+
+        // Listing pages come from the S3 snapshot, without touching the database.
+        // Searches, and clients that just wrote ("fresh": they must see their own change), read the database.
+        boolean fresh = "true".equalsIgnoreCase(getParameter(request, body, "fresh"));
+        if (!searching && !fresh) {
+            try {
+                JSONObject manifest = snapshotReader.manifest();
+                if (manifest != null) {
+                    return respond(request, manifest.getLong("version"), cacheKey, encoding, "SNAPSHOT",
+                            () -> readSnapshotPage(manifest, email, onlyMine, position, pageSize, fields));
                 }
-            } 
-     
-        } catch (ClassNotFoundException ex) {
-            logger.log(ex.toString());
+            } catch (Exception ex) {
+                logger.log("Snapshot unavailable, reading the database: " + ex);
+            }
+        }
+
+        try {
+            // Warm connection shared with the previous invocations (see Database)
+            return Database.run(mySQLClient -> respond(request, readCatalogVersion(mySQLClient), cacheKey, encoding,
+                    "DATABASE", () -> readDatabasePage(mySQLClient, searchExpression, email, onlyMine, position,
+                            pageSize, fields)));
         } catch (Exception ex) {
             logger.log(ex.toString());
         }
 
 
-        // Prepare the response to be returned through the API Gateway to the Frontend.
-        String Result = items.toString();
+        // Database error: empty page, not cached and without ETag
+        return compress(buildResponse(200, new PageWriter(fields, searching, pageSize).finish(null)), encoding);
+    }
+
+
+    // Reads one serialized page (from the database or from the snapshot)
+    @FunctionalInterface
+    private interface PageSource {
+        String read() throws SQLException;
+    }
+
+    // Unchanged catalog -> answer from the client's copy (304) or from memory, without reading the page.
+    // 'version' is the catalog version the page is read at: the snapshot and the database give the same page
+    // for the same version, so they share the ETag and the ListingCache entries.
+    private static APIGatewayProxyResponseEvent respond(APIGatewayProxyRequestEvent request, long version,
+            String cacheKey, String encoding, String source, PageSource pageSource) throws SQLException {
+        // Each content coding is a different representation -> a different ETag
+        String eTag = listingETag(version, cacheKey + "|" + encoding);
+        if (isNotModified(request, eTag)) {
+            return withETag(new APIGatewayProxyResponseEvent().withStatusCode(304)
+                    .withHeaders(new HashMap<>()), eTag);
+        }
+        String pageBody = listingCache.get(cacheKey, version);
+        String cache = "HIT";
+        if (pageBody == null) {
+            pageBody = pageSource.read();
+            listingCache.put(cacheKey, version, pageBody);
+            cache = "MISS";
+        }
+        APIGatewayProxyResponseEvent response = withETag(buildResponse(200, pageBody), eTag);
+        response.getHeaders().put("X-Cache", cache);
+        response.getHeaders().put("X-Listing-Source", source);
+        return compress(response, encoding);
+    }
+
+    // Listing page or search page, read from Photos
+    private static String readDatabasePage(Connection mySQLClient, String searchExpression, String email,
+            boolean onlyMine, long position, int pageSize, List<String> fields) throws SQLException {
+        boolean searching = searchExpression != null;
+        // The SQL statement uses placeholders (?) to prevent SQL Injection attacks.
+        PageWriter page = new PageWriter(fields, searching, pageSize);
+        String nextCursor = null;
+        PreparedStatement st = searching
+                ? prepareSearch(mySQLClient, toColumns(fields), searchExpression, email, onlyMine, position, pageSize)
+                : prepareListing(mySQLClient, toColumns(fields), email, onlyMine, position, pageSize);
+        try (ResultSet rs = st.executeQuery()) {
+            long lastId = position;
+            while (rs.next()) {
+                // The extra row only tells that there is a next page
+                if (page.items() == pageSize) {
+                    if (!searching) {
+                        nextCursor = encodeCursor("id:", lastId);
+                    } else if (position + pageSize < MAX_SEARCH_RESULTS) {
+                        nextCursor = encodeCursor("pos:", position + pageSize);
+                    }
+                    break;
+                }
+                lastId = rs.getLong(1);
+                // Written to the page buffer right away, no object per row
+                page.writeRow(rs);
+            }
+        }
+        return page.finish(nextCursor);
+    }
+
+    // Listing page from the snapshot files: same items and same cursor as prepareListing() at that version
+    private static String readSnapshotPage(JSONObject manifest, String email, boolean onlyMine, long afterId,
+            int pageSize, List<String> fields) {
+        PageWriter page = new PageWriter(fields, false, pageSize);
+        String nextCursor = null;
+        long lastId = afterId;
+        for (JSONObject item : snapshotReader.page(manifest, email, onlyMine, afterId, pageSize + 1)) {
+            if (page.items() == pageSize) {
+                nextCursor = encodeCursor("id:", lastId);
+                break;
+            }
+            lastId = item.getLong("ID");
+            page.writeItem(item);
+        }
+        return page.finish(nextCursor);
+    }
+
+
+    // CATALOG VERSION
+    // Single row, incremented in the same transaction as every write to Photos
+    // (LambdaInsertDataToDB, LambdaSecureDeleteObject, LambdaResizer)
+    private static long readCatalogVersion(Connection connection) throws SQLException {
+        PreparedStatement st = Database.prepare(connection, "SELECT Version FROM CatalogVersion WHERE ID = 1");
+        try (ResultSet rs = st.executeQuery()) {
+            return rs.next() ? rs.getLong("Version") : 0;
+        }
+    }
+
+    // Changes with the catalog version and with the request (caller, scope, search, cursor, page size).
+    // The request part is hashed, so the ETag does not reveal the caller's email.
+    private static String listingETag(long version, String cacheKey) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(cacheKey.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return "\"v" + version + "-" + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOf(hash, 12)) + "\"";
+    }
+
+    // If-None-Match uses the weak comparison: W/"abc" matches "abc"
+    private static boolean isNotModified(APIGatewayProxyRequestEvent request, String eTag) {
+        String ifNoneMatch = getHeader(request, "If-None-Match");
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(eTag)) return true;
+        }
+        return false;
+    }
+
+    // Access-Control-Expose-Headers lets the Frontend JavaScript read the ETag to send it back later.
+    private static APIGatewayProxyResponseEvent withETag(APIGatewayProxyResponseEvent response, String eTag) {
+        response.getHeaders().put("ETag", eTag);
+        response.getHeaders().put("Access-Control-Expose-Headers", "ETag, X-Cache, X-Listing-Source");
+        // Also sent with 304: caches must keep one copy per content coding
+        response.getHeaders().put("Vary", "Accept-Encoding");
+        return response;
+    }
+
+    // Function URLs may change the case of header names
+    private static String getHeader(APIGatewayProxyRequestEvent request, String name) {
+        Map<String, String> headers = request.getHeaders();
+        if (headers == null) return null;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+
+    // Keyset page of the caller's photos (+ public photos unless onlyMine)
+    private static PreparedStatement prepareListing(Connection connection, String columns, String email,
+            boolean onlyMine, long afterId, int pageSize) throws SQLException {
+        // scope "mine": range scan of (OwnerEmail, ID). Soft-deleted rows are skipped (few: the purge removes them)
+        String ownPage = "SELECT " + columns + " FROM Photos WHERE OwnerEmail = ? AND ID > ? AND DeletedAt IS NULL"
+                + " ORDER BY ID LIMIT ?";
+        // scope "all": own photos + public photos, each branch a range scan of its own index
+        String visiblePage = "(" + ownPage + ")"
+                + " UNION (SELECT " + columns + " FROM Photos WHERE Visibility = 'public' AND ID > ? AND DeletedAt IS NULL"
+                + " ORDER BY ID LIMIT ?)"
+                + " ORDER BY ID LIMIT ?";
+        PreparedStatement st = streaming(Database.prepare(connection, onlyMine ? ownPage : visiblePage));
+        st.setString(1, email);
+        st.setLong(2, afterId);
+        st.setInt(3, pageSize + 1);
+        if (!onlyMine) {
+            st.setLong(4, afterId);
+            st.setInt(5, pageSize + 1);
+            st.setInt(6, pageSize + 1);
+        }
+        return st;
+    }
+
+    // Connector/J reads the whole result into memory by default. A forward-only, read-only statement (the default
+    // of prepareStatement(sql)) with fetch size Integer.MIN_VALUE makes it hand over the rows one by one.
+    private static PreparedStatement streaming(PreparedStatement st) throws SQLException {
+        st.setFetchSize(Integer.MIN_VALUE);
+        return st;
+    }
+
+    // Ranked page of the search results, starting at 'offset' in the ranking
+    private static PreparedStatement prepareSearch(Connection connection, String columns, String searchExpression,
+            String email, boolean onlyMine, long offset, int pageSize) throws SQLException {
+        String search = "SELECT " + columns + ", " + MATCH + " AS Score FROM Photos"
+                + " WHERE " + MATCH + " AND DeletedAt IS NULL" + (onlyMine ? " AND OwnerEmail = ?" : " AND (OwnerEmail = ? OR Visibility = 'public')")
+                + " ORDER BY Score DESC, ID DESC LIMIT ? OFFSET ?";
+        PreparedStatement st = streaming(Database.prepare(connection, search));
+        st.setString(1, searchExpression);
+        st.setString(2, searchExpression);
+        st.setString(3, email);
+        st.setInt(4, (int) Math.min(pageSize + 1, MAX_SEARCH_RESULTS - offset));
+        st.setLong(5, offset);
+        return st;
+    }
+
+
+    // PROJECTION
+    // "S3Key,description" -> [Description, S3Key] (order of PHOTO_FIELDS, names are case-insensitive).
+    // No parameter -> every field. Unknown names are rejected (IllegalArgumentException).
+    private static List<String> parseFields(String parameter) {
+        if (parameter == null) return PHOTO_FIELDS;
+        Set<String> requested = new HashSet<>();
+        for (String name : parameter.split(",")) {
+            if (name.isBlank()) continue;
+            String field = PHOTO_FIELDS.stream()
+                    .filter(candidate -> candidate.equalsIgnoreCase(name.trim()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown field: " + name));
+            requested.add(field);
+        }
+        List<String> fields = new ArrayList<>();
+        for (String field : PHOTO_FIELDS) {
+            if (requested.contains(field)) fields.add(field);
+        }
+        if (fields.isEmpty()) throw new IllegalArgumentException("No fields");
+        return fields;
+    }
+
+    // Only the requested columns are read. ID is always selected: the cursor and the ordering need it.
+    // The names come from PHOTO_FIELDS only, never from the request, so they are safe to put in the SQL.
+    private static String toColumns(List<String> fields) {
+        return fields.contains("ID") ? String.join(", ", fields) : "ID, " + String.join(", ", fields);
+    }
+
+
+    // COMPRESSION
+    // Picks "gzip" or "deflate" from the Accept-Encoding header (gzip first), "identity" when none is accepted.
+    // "*" stands for the codings the header does not name: it never brings back one refused with q=0.
+    private static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) return "identity";
+        Set<String> accepted = new HashSet<>();
+        Set<String> refused = new HashSet<>();
+        for (String part : acceptEncoding.toLowerCase().split(",")) {
+            String[] tokens = part.split(";");
+            String coding = tokens[0].trim();
+            // "gzip;q=0" explicitly refuses gzip
+            boolean isRefused = tokens.length > 1 && tokens[1].trim().matches("q=0(\\.0*)?");
+            (isRefused ? refused : accepted).add(coding);
+        }
+        for (String coding : new String[] { "gzip", "deflate" }) {
+            if (refused.contains(coding)) continue;
+            if (accepted.contains(coding) || accepted.contains("*")) return coding;
+        }
+        return "identity";
+    }
+
+    // Function URLs only return binary bodies as Base64 (isBase64Encoded = true), the client receives the raw bytes.
+    private static APIGatewayProxyResponseEvent compress(APIGatewayProxyResponseEvent response, String encoding) {
+        response.getHeaders().put("Vary", "Accept-Encoding");
+        byte[] raw = response.getBody().getBytes(StandardCharsets.UTF_8);
+        if (encoding.equals("identity") || raw.length < MIN_COMPRESSED_SIZE) {
+            return response;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+        // "deflate" in HTTP is the zlib format, which DeflaterOutputStream writes
+        try (OutputStream out = encoding.equals("gzip")
+                ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            out.write(raw);
+        } catch (IOException e) {
+            return response;
+        }
+        response.getHeaders().put("Content-Encoding", encoding);
+        response.setBody(Base64.getEncoder().encodeToString(compressed.toByteArray()));
+        response.setIsBase64Encoded(true);
+        return response;
+    }
+
+
+    // SEARCH
+    // "Beach, 2024!" -> "+beach* +2024*": every word is required and matches as a prefix.
+    // Splitting on everything except letters / digits / '_' also removes the BOOLEAN MODE operators (+ - " * ...)
+    private static String toSearchExpression(String text) {
+        StringBuilder expression = new StringBuilder();
+        int words = 0;
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}_]+")) {
+            if (word.length() < MIN_SEARCH_WORD_LENGTH) continue;
+            if (words++ == MAX_SEARCH_WORDS) break;
+            if (expression.length() > 0) expression.append(' ');
+            expression.append('+').append(word).append('*');
+        }
+        return expression.toString();
+    }
+
+
+    private static APIGatewayProxyResponseEvent buildResponse(int statusCode, String body) {
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
-        response.setStatusCode(200);
-        response.setBody(Result);
+        response.setStatusCode(statusCode);
+        response.setBody(body);
         response.withIsBase64Encoded(false);
 
-        response.setHeaders(java.util.Collections
-                .singletonMap("Content-Type", "application/json"));
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        response.setHeaders(headers);
         return response;
     }
 
     
-    // CONFIGURE CONNECTION PROPERTIES 
-    // Packages the necessary settings (User, Password, SSL) into a Properties object.
-    private static Properties setMySqlConnectionProperties() throws Exception {
-        Properties mysqlConnectionProperties = new Properties();
-        mysqlConnectionProperties.setProperty("useSSL", "true");
-        mysqlConnectionProperties.setProperty("user", DB_USER);
-        mysqlConnectionProperties.setProperty("password", generateAuthToken());
-        return mysqlConnectionProperties;
-    }
-
-
-    // RdsUtilities - provide support tools for RDS operations.(in this case, auth token generation)
-    private static String generateAuthToken() throws Exception {      
-        RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-        String authToken
-                = rdsUtilities.generateAuthenticationToken(
-                        GenerateAuthenticationTokenRequest.builder()
-                                .hostname(RDS_INSTANCE_HOSTNAME)
-                                .port(RDS_INSTANCE_PORT)
-                                .username(DB_USER)
-                                .region(Region.US_EAST_1)
-                                .credentialsProvider(DefaultCredentialsProvider.create())
-                                .build());
-        return authToken;
-    }
-
-}
\ No newline at end of file
+    // Check if AWS has encoded the JSON Body (Base64). If so, decode it first. No body -> empty object.
+    private static JSONObject parseBody(APIGatewayProxyRequestEvent request) {
+        String requestBody = request.getBody();
+        if (requestBody == null || requestBody.isEmpty()) return new JSONObject();
+        if (Boolean.TRUE.equals(request.getIsBase64Encoded())) {
+            requestBody = new String(Base64.getDecoder().decode(requestBody), StandardCharsets.UTF_8);
+        }
+        return new JSONObject(requestBody);
+    }
+
+    // JSON body first, then the query string (function URLs pass it as a map, null when there is none)
+    private static String getParameter(APIGatewayProxyRequestEvent request, JSONObject body, String name) {
+        String value = body.has(name) && !body.isNull(name) ? String.valueOf(body.get(name)) : null;
+        if (value == null || value.isEmpty()) {
+            Map<String, String> parameters = request.getQueryStringParameters();
+            value = parameters == null ? null : parameters.get(name);
+        }
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+
+    // CURSOR
+    // The cursor is the ID of the last row of the page ("id:"), or for a search the position in the ranking ("pos:"),
+    // Base64 (URL safe) encoded so clients treat it as opaque and it can be sent in a query string as is.
+    private static String encodeCursor(String kind, long value) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((kind + value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // No cursor -> first page. Throws IllegalArgumentException for a cursor that was not produced by encodeCursor()
+    // with the same kind (e.g. a listing cursor sent with a search).
+    private static long decodeCursor(String cursor, String kind) {
+        if (cursor == null) return 0;
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if (!decoded.startsWith(kind)) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        long value = Long.parseLong(decoded.substring(kind.length()));
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return value;
+    }
+
+
+    // CHECK CREDENTIAL
+
+    private static boolean isValidUser(String email, String token, LambdaLogger logger) {
+        try {
+            if (email == null || email.isEmpty() || token == null || token.isEmpty()) return false;
+            String secretKey = getSecretKeyFromSSM(logger);
+            String expectedToken = generateSecureToken(email, secretKey, logger);
+            return token.equals(expectedToken);
+        } catch (Exception e) {
+            logger.log("Security Check Error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String getSecretKeyFromSSM(LambdaLogger logger) throws Exception {
+        String parameterName = "cloud26-secret_key";
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        String url = "http://localhost:2773/systemsmanager/parameters/get/?name=" + parameterName + "&withDecryption=true";
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("X-Aws-Parameters-Secrets-Token", System.getenv("AWS_SESSION_TOKEN"))
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        JSONObject jsonResponse = new JSONObject(response.body());
+        return jsonResponse.getJSONObject("Parameter").getString("Value");
+    }
+
+    public static String generateSecureToken(String data, String key, LambdaLogger logger) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            SecretKeySpec secretKeySpec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+            mac.init(secretKeySpec);
+            byte[] hmacBytes = mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hmacBytes);
+        } catch (Exception e) { return null; }
+    }
+
+}
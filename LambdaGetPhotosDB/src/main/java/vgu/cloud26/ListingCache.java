@@ -0,0 +1,57 @@
+package vgu.cloud26;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Serialized listing pages (the JSON bodies returned by LambdaGetPhotosDB), kept in memory between warm invocations.
+
+Every page is stored together with the catalog version it was read at (CatalogVersion table, bumped by every
+write to Photos). A page is only returned while that version is still the current one, so after an upload,
+delete or placeholder update all older pages are simply never served again.
+   - Key: everything that changes the content of a page (caller, scope, search, cursor, page size).
+   - Bounded: at most MAX_ENTRIES pages, the least recently used page is evicted first.
+*/
+public class ListingCache {
+
+    private static final int MAX_ENTRIES = 200;
+
+    private static final class Page {
+        final long version;
+        final String body;
+
+        Page(long version, String body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    // accessOrder = true -> iteration order is "least recently used first", which removeEldestEntry() evicts
+    private final Map<String, Page> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+
+    // Returns the cached body of the page, or null if it is missing or was read at another catalog version.
+    public String get(String key, long version) {
+        synchronized (pages) {
+            Page page = pages.get(key);
+            if (page == null) return null;
+            if (page.version != version) {
+                pages.remove(key);
+                return null;
+            }
+            return page.body;
+        }
+    }
+
+
+    public void put(String key, long version, String body) {
+        synchronized (pages) {
+            pages.put(key, new Page(version, body));
+        }
+    }
+}
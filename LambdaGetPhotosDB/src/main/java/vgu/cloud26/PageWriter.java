@@ -0,0 +1,112 @@
+package vgu.cloud26;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/*
+Writes one listing page { "items": [...], "nextCursor": ... } as JSON text, row by row,
+straight from the ResultSet into a single pre-sized buffer.
+
+LambdaGetPhotosDB used to build a JSONObject per row, collect them in a JSONArray and then call toString():
+three copies of the page existed at the same time. Here every row is appended as soon as it is read,
+no object is created per row, and the buffer is sized from the page size so it rarely has to grow.
+
+Pages served from the S3 snapshot (SnapshotReader) are written the same way, item by item (writeItem()).
+
+Column layout expected in the ResultSet (see LambdaGetPhotosDB.toColumns()):
+   1          -> ID (always selected)
+   next ones  -> the projected fields, in the order of 'fields' (ID is not repeated)
+   last       -> Score, only for searches
+*/
+public class PageWriter {
+
+    // Rough size of one item, used to size the buffer. A Placeholder (data URI) alone is ~1KB.
+    private static final int ITEM_SIZE = 160;
+    private static final int ITEM_SIZE_WITH_PLACEHOLDER = 1400;
+
+    private final List<String> fields;
+    private final boolean withScore;
+    private final StringBuilder out;
+    private int items = 0;
+
+
+    public PageWriter(List<String> fields, boolean withScore, int pageSize) {
+        this.fields = fields;
+        this.withScore = withScore;
+        int itemSize = fields.contains("Placeholder") ? ITEM_SIZE_WITH_PLACEHOLDER : ITEM_SIZE;
+        this.out = new StringBuilder(64 + pageSize * itemSize);
+        out.append("{\"items\":[");
+    }
+
+
+    public int items() {
+        return items;
+    }
+
+
+    // Appends the current row of the ResultSet as one item
+    public void writeRow(ResultSet rs) throws SQLException {
+        if (items++ > 0) out.append(',');
+        out.append('{');
+        boolean first = true;
+        // Column 1 is always ID, the other fields follow
+        int column = 2;
+        for (String field : fields) {
+            if (field.equals("ID")) {
+                first = appendName(field, first);
+                out.append(rs.getLong(1));
+                continue;
+            }
+            String value = rs.getString(column++);
+            // Placeholder is null until LambdaResizer has processed the photo: the field is left out
+            if (value == null) continue;
+            first = appendName(field, first);
+            out.append(JSONObject.quote(value));
+        }
+        if (withScore) {
+            appendName("Score", first);
+            out.append(rs.getDouble(column));
+        }
+        out.append('}');
+    }
+
+
+    // Appends one item of the S3 snapshot, with the same projection as writeRow() (never has a Score)
+    public void writeItem(JSONObject item) {
+        if (items++ > 0) out.append(',');
+        out.append('{');
+        boolean first = true;
+        for (String field : fields) {
+            if (field.equals("ID")) {
+                first = appendName(field, first);
+                out.append(item.getLong("ID"));
+                continue;
+            }
+            // Fields that were null in the database are not in the snapshot either
+            String value = item.optString(field, null);
+            if (value == null) continue;
+            first = appendName(field, first);
+            out.append(JSONObject.quote(value));
+        }
+        out.append('}');
+    }
+
+
+    // Closes the JSON text. nextCursor == null -> "nextCursor": null (last page)
+    public String finish(String nextCursor) {
+        out.append("],\"nextCursor\":");
+        out.append(nextCursor != null ? JSONObject.quote(nextCursor) : "null");
+        out.append('}');
+        return out.toString();
+    }
+
+
+    private boolean appendName(String name, boolean first) {
+        if (!first) out.append(',');
+        out.append('"').append(name).append("\":");
+        return false;
+    }
+}
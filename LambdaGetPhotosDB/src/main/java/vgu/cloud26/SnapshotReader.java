@@ -0,0 +1,145 @@
+package vgu.cloud26;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/*
+Reads the listing snapshot published by LambdaPublishSnapshot in SNAPSHOT_BUCKET, so listing pages can be
+served without opening a database connection.
+   - manifest.json: { "version": n, "public": "<key>", "owners": { "<owner>": "<key>" } },
+     fetched again at most every MANIFEST_TTL_MILLIS (a new snapshot is seen within that delay).
+   - Files ({ "items": [...] } ordered by ID, gzip): their keys are content hashes, a key never changes content,
+     so they are kept in memory without expiry (at most MAX_FILES, least recently used evicted first).
+Every S3 / parsing error is thrown as a RuntimeException: the caller then reads the database instead.
+*/
+public class SnapshotReader {
+
+    private static final String SNAPSHOT_BUCKET = System.getenv().getOrDefault("SNAPSHOT_BUCKET", "ann-snapshot-bucket");
+    private static final String MANIFEST_KEY = "manifest.json";
+    private static final long MANIFEST_TTL_MILLIS = 5_000;
+    private static final int MAX_FILES = 50;
+
+    private final S3Client s3Client = S3Client.builder()
+            .region(Region.US_EAST_1)
+            .build();
+
+    private JSONObject manifest;
+    private long manifestReadAt;
+
+    // accessOrder = true -> the least recently used file is evicted first
+    private final Map<String, JSONArray> files = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JSONArray> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+
+
+    // Current manifest, null when nothing has been published yet
+    public synchronized JSONObject manifest() {
+        long now = System.currentTimeMillis();
+        if (manifestReadAt == 0 || now - manifestReadAt >= MANIFEST_TTL_MILLIS) {
+            try {
+                manifest = new JSONObject(new String(read(MANIFEST_KEY), StandardCharsets.UTF_8));
+            } catch (NoSuchKeyException e) {
+                manifest = null;
+            }
+            manifestReadAt = now;
+        }
+        return manifest;
+    }
+
+
+    // Items visible to the caller with ID > afterId, in ID order, at most 'limit':
+    // the caller's own file merged with the public file (own public photos are in both, kept once)
+    public List<JSONObject> page(JSONObject manifest, String email, boolean onlyMine, long afterId, int limit) {
+        String ownKey = manifest.getJSONObject("owners").optString(ownerHash(email), null);
+        JSONArray own = ownKey != null ? file(ownKey) : new JSONArray();
+        JSONArray shared = onlyMine ? new JSONArray() : file(manifest.getString("public"));
+
+        List<JSONObject> page = new ArrayList<>(limit);
+        int i = firstAfter(own, afterId);
+        int j = firstAfter(shared, afterId);
+        while (page.size() < limit && (i < own.length() || j < shared.length())) {
+            long ownId = i < own.length() ? own.getJSONObject(i).getLong("ID") : Long.MAX_VALUE;
+            long sharedId = j < shared.length() ? shared.getJSONObject(j).getLong("ID") : Long.MAX_VALUE;
+            if (ownId <= sharedId) {
+                page.add(own.getJSONObject(i++));
+                if (ownId == sharedId) j++;
+            } else {
+                page.add(shared.getJSONObject(j++));
+            }
+        }
+        return page;
+    }
+
+
+    // Index of the first item with ID > afterId (binary search, the items are ordered by ID)
+    private static int firstAfter(JSONArray items, long afterId) {
+        int low = 0;
+        int high = items.length();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (items.getJSONObject(middle).getLong("ID") <= afterId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private synchronized JSONArray file(String key) {
+        JSONArray items = files.get(key);
+        if (items == null) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(read(key)))) {
+                items = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8)).getJSONArray("items");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            files.put(key, items);
+        }
+        return items;
+    }
+
+    private byte[] read(String key) {
+        return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(SNAPSHOT_BUCKET)
+                .key(key)
+                .build()).asByteArray();
+    }
+
+
+    // Same owner id as LambdaPublishSnapshot: SHA-256 of the lower-cased email
+    private static String ownerHash(String email) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(email.toLowerCase().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
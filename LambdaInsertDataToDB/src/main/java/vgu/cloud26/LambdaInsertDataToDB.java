@@ -1,32 +1,98 @@
 package vgu.cloud26;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.rds.RdsUtilities;
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 
+/*
+WORKFLOW:
+Input (direct invocation):
+   - one record, from LambdaOrchestrator: { "key": "img.jpg", "description": "...", "email": "...",
+                                           "visibility": "private" | "public", "size": 12345 }
+   - or a batch (bulk imports): { "records": [ { record }, { record }, ... ] }, at most MAX_BATCH_SIZE records.
 
+1. Records without a key are reported "invalid" and skipped. When a key appears several times in the batch,
+   only its last record is written, the earlier ones are reported "coalesced".
+2. All rows are written in ONE transaction with ONE JDBC batch: the driver rewrites it into multi-row
+   INSERT statements (rewriteBatchedStatements, see Database), so a batch costs a few round trips, not one per row.
+   The INSERT is an upsert on the unique S3Key (see LambdaMigrateSchema): when the Orchestrator retries, the row
+   of the first attempt is updated ("updated") instead of duplicated. A key owned by another user is not written
+   ("conflict"). A soft-deleted row of the same owner is brought back (DeletedAt cleared) and counted as "inserted",
+   unless the purge has claimed it (its files are being deleted): then the key is taken ("conflict") until the
+   row is gone.
+   The owners' stats (one upsert per owner) and the catalog version are updated in the same transaction.
+3. Returns { "success": true, "rows_inserted": n, "rows_updated": n } and, for a batch, "results": one status per input record
+   ("inserted", "updated", "conflict", "invalid", "coalesced"), in the order of the input.
+   A single record whose key belongs to another user: { "success": false, "error": "key_taken" }.
+   An owner over quota rejects the whole batch (nothing written): { "success": false, "error": "quota_exceeded" }.
+*/
 public class LambdaInsertDataToDB implements RequestHandler<Map<String, Object>, String> {
 
-    
-    private static final String RDS_HOST = "database-1.cc38mew6e9au.us-east-1.rds.amazonaws.com";
-    private static final int RDS_PORT = 3306;
-    private static final String DB_USER = "cloud26";
+    // Upload quota per owner, checked against OwnerStats in the insert transaction. 0 (or not set) = no limit.
+    private static final long MAX_PHOTOS_PER_OWNER = Long.parseLong(System.getenv().getOrDefault("MAX_PHOTOS_PER_OWNER", "0"));
+    private static final long MAX_BYTES_PER_OWNER = Long.parseLong(System.getenv().getOrDefault("MAX_BYTES_PER_OWNER", "0"));
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    // One row of Photos to insert
+    private static final class Record {
+        final String key;
+        final String description;
+        final String email;
+        final String visibility;
+        final long sizeBytes;
+
+        Record(Map<?, ?> input) {
+            this.key = (String) input.get("key");
+            // Description can be empty
+            this.description = input.get("description") != null ? (String) input.get("description") : "";
+            this.email = input.get("email") != null ? (String) input.get("email") : "unknown";
+            // Photos are private unless the owner explicitly shares them
+            this.visibility = "public".equals(input.get("visibility")) ? "public" : "private";
+            // Size of the original file in bytes (computed by the Orchestrator), counted in OwnerStats
+            this.sizeBytes = input.get("size") instanceof Number ? ((Number) input.get("size")).longValue() : 0;
+        }
+    }
+
+    // Photos row already stored for a key
+    private static final class ExistingRow {
+        final String email;
+        final long sizeBytes;
+        // Soft-deleted, waiting for the purge (see LambdaSecureDeleteObject): not counted in OwnerStats
+        final boolean deleted;
+        // Claimed by the purge: its S3 objects are being deleted, the row must not be brought back
+        final boolean purging;
+
+        ExistingRow(String email, long sizeBytes, boolean deleted, boolean purging) {
+            this.email = email;
+            this.sizeBytes = sizeBytes;
+            this.deleted = deleted;
+            this.purging = purging;
+        }
+    }
 
-    // --- CONNECTION STRING ---
-    // Format: jdbc:mysql://[HOST]:[PORT]/[DB_NAME]
-    // Java uses this URL to locate the database.
-    private static final String JDBC_URL = "jdbc:mysql://" + RDS_HOST + ":" + RDS_PORT + "/Cloud26";
+    
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaInsertDataToDB", () -> {
+            Database.prime();
+            new Record(Map.of("key", "priming.jpg", "email", "priming@cloud26", "size", 1));
+        });
+    }
 
     @Override
     public String handleRequest(Map<String, Object> input, Context context) {
@@ -39,52 +105,124 @@ public class LambdaInsertDataToDB implements RequestHandler<Map<String, Object>,
 
 
         try {
-            // Get data from the Map passed by the Orchestrator
-            String description = (String) input.get("description");
-            String key = (String) input.get("key");
-            String email = (String) input.get("email"); 
+            // Get data from the Map passed by the Orchestrator (one record) or by a bulk import ("records")
+            boolean batch = input.get("records") instanceof List;
+            List<?> inputs = batch ? (List<?>) input.get("records") : List.of(input);
+            if (inputs.size() > MAX_BATCH_SIZE) {
+                throw new RuntimeException("More than " + MAX_BATCH_SIZE + " records in one batch");
+            }
 
-            // Key cannot be missing
-            if (key == null || key.isEmpty()) {
+            // Status of every input record, and the records to write (by key: the last record of a key wins).
+            // Keys are told apart exactly like the unique index on S3Key does (byte comparison, see LambdaMigrateSchema):
+            // "A.jpg" and "a.jpg" are two rows, each counted in OwnerStats; the same key twice is one row.
+            String[] results = new String[inputs.size()];
+            Map<String, Integer> lastRecordOfKey = new LinkedHashMap<>();
+            Record[] records = new Record[inputs.size()];
+            for (int i = 0; i < inputs.size(); i++) {
+                Record record = inputs.get(i) instanceof Map ? new Record((Map<?, ?>) inputs.get(i)) : null;
+                // Key cannot be missing
+                if (record == null || record.key == null || record.key.isEmpty()) {
+                    results[i] = "invalid";
+                    continue;
+                }
+                records[i] = record;
+                Integer previous = lastRecordOfKey.put(record.key, i);
+                if (previous != null) {
+                    results[previous] = "coalesced";
+                }
+            }
+            if (!batch && lastRecordOfKey.isEmpty()) {
                 throw new RuntimeException("Missing 'key' in payload");
             }
-            // Description can be empty
-            if (description == null) description = "";
-            if (email == null) email = "unknown";
-
-
-
-            /* Load the jdbc driver class into memory to ensures the driver 
-               is registered with the DriverManager before use. */
-            // Acts as a "Translator" enabling the Java application to communicate with the MySQL database.
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            // Create a Properties object containing: database username, authentication token (password), and SSL settings.
-            // SSL (Secure Sockets Layer) secure the connection between the application (browser) & the database (server).
-            // This 'props' object will be passed to DriverManager to establish the connection.
-            Properties props = setMySqlConnectionProperties();
-            
-
-            // Establish the database connection with "Try-with-resources" syntax.
-            // "Try-with-resources" : Automatically closes the Connecion when execution finishes (even if an error occurs).  
-            try (Connection conn = DriverManager.getConnection(JDBC_URL, props);
-
-                // Prepare the SQL statement with placeholders (?) to prevent SQL Injection attacks.
-                 PreparedStatement ps = conn.prepareStatement("INSERT INTO Photos (Description, S3Key, OwnerEmail) VALUES (?, ?, ?)")) {
-                // Replace the first '?' with the description 
-                ps.setString(1, description);
-                // Replace the second '?' with the S3 key (filename) 
-                ps.setString(2, key);
-                // Replace the third '?' with the email
-                ps.setString(3, email);
-                // Run the INSERT command. Returns the number of rows affected (should be 1).
-                int rows = ps.executeUpdate();
-                
-                logger.log("Inserted into DB successfully. Rows affected: " + rows);
-                
-
-                return "{\"success\": true, \"rows_inserted\": " + rows + "}";
+            List<Integer> written = new ArrayList<>(lastRecordOfKey.values());
+
+
+
+            // The rows, the owners' stats and the new catalog version are committed together,
+            // on the connection kept open between warm invocations (see Database)
+            String[] statuses;
+            try {
+                statuses = written.isEmpty() ? new String[0] : Database.transaction(conn -> {
+                    // Rows that already exist for these keys (a retried upload, or another owner's file)
+                    Map<String, ExistingRow> existing = lockExistingRows(conn, lastRecordOfKey.keySet());
+
+                    // Upsert (unique index on S3Key): a retry updates the row written by the first attempt
+                    // instead of adding a duplicate. The SQL statement uses placeholders (?) to prevent SQL Injection.
+                    // CreatedAt (a new row gets its default) is set again by every upload: the object follows the row,
+                    // and LambdaReconcileStorage leaves rows written less than an hour ago alone.
+                    PreparedStatement ps = Database.prepare(conn,
+                            "INSERT INTO Photos (Description, S3Key, OwnerEmail, Visibility, SizeBytes) VALUES (?, ?, ?, ?, ?)"
+                            + " ON DUPLICATE KEY UPDATE Description = VALUES(Description), Visibility = VALUES(Visibility),"
+                            + " SizeBytes = VALUES(SizeBytes), DeletedAt = NULL, CreatedAt = NOW()");
+                    // A failed batch of a previous invocation may have left rows in the cached statement
+                    ps.clearBatch();
+                    // Photos and bytes added per owner, sorted so concurrent batches lock OwnerStats rows in the same order
+                    Map<String, long[]> added = new TreeMap<>();
+                    String[] status = new String[written.size()];
+                    int rowsToWrite = 0;
+                    for (int i = 0; i < written.size(); i++) {
+                        Record record = records[written.get(i)];
+                        ExistingRow current = existing.get(record.key);
+                        // The key belongs to somebody else (even deleted, until it is purged): never take over their photo.
+                        // A key being purged is nobody's yet: the purge would delete the uploaded file.
+                        if (current != null && (current.purging || !current.email.equalsIgnoreCase(record.email))) {
+                            status[i] = "conflict";
+                            continue;
+                        }
+                        ps.setString(1, record.description);
+                        ps.setString(2, record.key);
+                        ps.setString(3, record.email);
+                        ps.setString(4, record.visibility);
+                        ps.setLong(5, record.sizeBytes);
+                        ps.addBatch();
+                        rowsToWrite++;
+                        // A new (or soft-deleted) row adds a photo, an updated row only changes the size
+                        boolean counted = current != null && !current.deleted;
+                        long[] owner = added.computeIfAbsent(current != null ? current.email : record.email, k -> new long[2]);
+                        owner[0] += counted ? 0 : 1;
+                        owner[1] += record.sizeBytes - (counted ? current.sizeBytes : 0);
+                        status[i] = counted ? "updated" : "inserted";
+                    }
+                    if (rowsToWrite == 0) return status;
+
+                    // Sent as multi-row INSERTs (rewriteBatchedStatements)
+                    ps.executeBatch();
+                    for (Map.Entry<String, long[]> owner : added.entrySet()) {
+                        addOwnerStats(conn, owner.getKey(), owner.getValue()[0], owner.getValue()[1]);
+                    }
+                    bumpCatalogVersion(conn);
+                    return status;
+                });
+            } catch (QuotaExceededException ex) {
+                // Rolled back: nothing was written. The Orchestrator stops the upload.
+                logger.log("Quota exceeded: " + ex.getMessage());
+                return "{\"success\": false, \"error\": \"quota_exceeded\"}";
+            }
+
+            int rows = 0;
+            int updated = 0;
+            for (int i = 0; i < statuses.length; i++) {
+                results[written.get(i)] = statuses[i];
+                if (statuses[i].equals("inserted")) rows++;
+                if (statuses[i].equals("updated")) updated++;
+            }
+
+            logger.log("Inserted into DB successfully. Rows inserted: " + rows + ", updated: " + updated);
+
+            if (!batch) {
+                // The Orchestrator stops the upload: the S3 object of this key belongs to another user
+                if (results[0].equals("conflict")) {
+                    return "{\"success\": false, \"error\": \"key_taken\"}";
+                }
+                return "{\"success\": true, \"rows_inserted\": " + rows + ", \"rows_updated\": " + updated + "}";
+            }
+            StringBuilder response = new StringBuilder("{\"success\": true, \"rows_inserted\": " + rows
+                    + ", \"rows_updated\": " + updated + ", \"results\": [");
+            for (int i = 0; i < results.length; i++) {
+                if (i > 0) response.append(", ");
+                response.append('"').append(results[i]).append('"');
             }
+            return response.append("]}").toString();
 
 
         } catch (Exception ex) {
@@ -95,28 +233,75 @@ public class LambdaInsertDataToDB implements RequestHandler<Map<String, Object>,
     }
 
 
-    // CONFIGURE CONNECTION PROPERTIES 
-    // Packages the necessary settings (User, Password, SSL) into a Properties object.
-    private static Properties setMySqlConnectionProperties() throws Exception {
-        Properties mysqlProps = new Properties();
-        mysqlProps.setProperty("useSSL", "true");
-        mysqlProps.setProperty("user", DB_USER);
-        // call generateAuthToken() to get a temporary credential valid for 15 minutes.
-        mysqlProps.setProperty("password", generateAuthToken());
-        return mysqlProps;
+    // Current owner, size, soft-delete and purge-claim state of the rows of these keys, locked (FOR UPDATE) until the end of the transaction.
+    // For keys that do not exist yet the lock is a gap lock: two uploads of new keys falling into the same gap block
+    // each other's INSERT, InnoDB rolls one of them back (deadlock) and Database.transaction() runs it again.
+    // The key list changes with every batch, so this statement is prepared here and not cached.
+    private static Map<String, ExistingRow> lockExistingRows(Connection conn, Set<String> keys) throws SQLException {
+        String placeholders = String.join(", ", Collections.nCopies(keys.size(), "?"));
+        // S3Key compares bytes (see LambdaMigrateSchema), like String.equals
+        Map<String, ExistingRow> existing = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT S3Key, OwnerEmail, SizeBytes, DeletedAt IS NOT NULL AS Deleted, PurgeClaimedAt IS NOT NULL AS Purging"
+                + " FROM Photos"
+                + " WHERE S3Key IN (" + placeholders + ") FOR UPDATE")) {
+            int index = 1;
+            for (String key : keys) {
+                ps.setString(index++, key);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    existing.put(rs.getString("S3Key"),
+                            new ExistingRow(rs.getString("OwnerEmail"), rs.getLong("SizeBytes"), rs.getBoolean("Deleted"),
+                                    rs.getBoolean("Purging")));
+                }
+            }
+        }
+        return existing;
+    }
+
+
+    // OWNER STATS
+    // Adds the photos to the owner's row (created on the first upload), then checks the quota on the new totals.
+    // The upsert locks the owner's row until commit, so concurrent uploads of one owner are counted one after the other.
+    private static void addOwnerStats(Connection conn, String email, long photos, long sizeBytes) throws SQLException {
+        PreparedStatement add = Database.prepare(conn,
+                "INSERT INTO OwnerStats (OwnerEmail, PhotoCount, TotalBytes) VALUES (?, ?, ?)"
+                + " ON DUPLICATE KEY UPDATE PhotoCount = PhotoCount + VALUES(PhotoCount), TotalBytes = TotalBytes + VALUES(TotalBytes)");
+        add.setString(1, email);
+        add.setLong(2, photos);
+        add.setLong(3, sizeBytes);
+        add.executeUpdate();
+
+        if (MAX_PHOTOS_PER_OWNER <= 0 && MAX_BYTES_PER_OWNER <= 0) return;
+        PreparedStatement totals = Database.prepare(conn,
+                "SELECT PhotoCount, TotalBytes FROM OwnerStats WHERE OwnerEmail = ?");
+        totals.setString(1, email);
+        try (ResultSet rs = totals.executeQuery()) {
+            rs.next();
+            if (MAX_PHOTOS_PER_OWNER > 0 && rs.getLong("PhotoCount") > MAX_PHOTOS_PER_OWNER) {
+                throw new QuotaExceededException(email + " has more than " + MAX_PHOTOS_PER_OWNER + " photos");
+            }
+            if (MAX_BYTES_PER_OWNER > 0 && rs.getLong("TotalBytes") > MAX_BYTES_PER_OWNER) {
+                throw new QuotaExceededException(email + " has more than " + MAX_BYTES_PER_OWNER + " bytes");
+            }
+        }
     }
 
+    // Thrown inside the transaction so that Database.transaction() rolls the insert back
+    private static final class QuotaExceededException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        QuotaExceededException(String message) {
+            super(message);
+        }
+    }
 
 
-    private static String generateAuthToken() throws Exception {
-        // RdsUtilities - provide support tools for RDS operations.(in this case, auth token generation)
-        RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-        return rdsUtilities.generateAuthenticationToken(GenerateAuthenticationTokenRequest.builder()
-                .hostname(RDS_HOST)
-                .port(RDS_PORT)
-                .username(DB_USER)
-                .region(Region.US_EAST_1)
-                .credentialsProvider(DefaultCredentialsProvider.create())
-                .build());
+    // CATALOG VERSION
+    // Tells LambdaGetPhotosDB that the listing changed (its cached pages and ETags become stale).
+    // Called in the same transaction as the write, so readers never see the new version without the new data.
+    private static void bumpCatalogVersion(Connection conn) throws SQLException {
+        Database.prepare(conn, "UPDATE CatalogVersion SET Version = Version + 1 WHERE ID = 1").executeUpdate();
     }
-}
\ No newline at end of file
+}
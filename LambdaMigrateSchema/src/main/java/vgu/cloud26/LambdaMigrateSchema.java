@@ -0,0 +1,216 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/*
+WORKFLOW:
+Creates and upgrades the Cloud26 schema, so every environment has the same tables and indexes.
+Invoked directly (console, CLI or deployment pipeline) with any payload, before deploying Lambdas that need
+a new migration. Running it again is harmless.
+
+1. Take the named lock MIGRATION_LOCK: two runs at the same time wait for each other.
+2. Create SchemaVersion if needed and read the versions already applied.
+3. Apply every migration of MIGRATIONS that is not recorded yet, in order, and record it.
+   MySQL commits every DDL statement by itself, so a migration cannot be rolled back half way: its statements are
+   written to be run again (IF NOT EXISTS, INSERT IGNORE, ...), and errors meaning "already there"
+   (ALREADY_APPLIED, e.g. a column added by hand before this module existed) are skipped.
+4. Returns the schema version.
+
+A schema change = a NEW migration at the end of MIGRATIONS. Never edit a migration that was already applied.
+*/
+public class LambdaMigrateSchema implements RequestHandler<Map<String, Object>, String> {
+
+    private static final String MIGRATION_LOCK = "Cloud26.schema_migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    // ER_TABLE_EXISTS_ERROR, ER_DUP_FIELDNAME (column), ER_DUP_KEYNAME (index), ER_CANT_DROP_FIELD_OR_KEY (already dropped)
+    private static final Set<Integer> ALREADY_APPLIED = Set.of(1050, 1060, 1061, 1091);
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    // S3 keys are case-sensitive byte strings: S3Key compares bytes (no case / accent folding, no trailing space padding),
+    // so "IMG.jpg", "img.jpg" and "café.jpg" / "cafe.jpg" are different rows, like they are different objects.
+    // A FULLTEXT index needs one collation for all its columns: search uses SearchKey, a copy of S3Key in the
+    // collation of Description.
+    private static final String S3KEY_COLUMN = "S3Key VARCHAR(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_bin NOT NULL";
+    private static final String SEARCHKEY_COLUMN = "SearchKey VARCHAR(255) GENERATED ALWAYS AS (S3Key) STORED";
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Photos table",
+                    "CREATE TABLE IF NOT EXISTS Photos ("
+                    + " ID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,"
+                    + " Description VARCHAR(1000) NOT NULL DEFAULT '',"
+                    + " " + S3KEY_COLUMN + ","
+                    + " " + SEARCHKEY_COLUMN + ","
+                    + " OwnerEmail VARCHAR(255) NOT NULL"
+                    + ") ENGINE = InnoDB DEFAULT CHARSET = utf8mb4"),
+
+            // Listing by owner / public photos, keyset paginated on ID (LambdaGetPhotosDB)
+            new Migration(2, "Visibility and listing indexes",
+                    "ALTER TABLE Photos ADD COLUMN Visibility VARCHAR(10) NOT NULL DEFAULT 'private'",
+                    "CREATE INDEX idx_photos_owner_id ON Photos (OwnerEmail, ID)",
+                    "CREATE INDEX idx_photos_visibility_id ON Photos (Visibility, ID)"),
+
+            // Tables created before migration 1 (CREATE TABLE IF NOT EXISTS skips them) have no SearchKey yet
+            new Migration(3, "Full-text search",
+                    "ALTER TABLE Photos ADD COLUMN " + SEARCHKEY_COLUMN + " AFTER S3Key",
+                    "ALTER TABLE Photos ADD FULLTEXT INDEX ft_photos_description_key (Description, SearchKey)"),
+
+            new Migration(4, "Catalog version",
+                    "CREATE TABLE IF NOT EXISTS CatalogVersion (ID INT PRIMARY KEY, Version BIGINT NOT NULL)",
+                    "INSERT IGNORE INTO CatalogVersion (ID, Version) VALUES (1, 0)"),
+
+            new Migration(5, "Placeholder (LQIP) written by LambdaResizer",
+                    "ALTER TABLE Photos ADD COLUMN Placeholder TEXT NULL"),
+
+            new Migration(6, "Owner statistics",
+                    "ALTER TABLE Photos ADD COLUMN SizeBytes BIGINT NOT NULL DEFAULT 0",
+                    "CREATE TABLE IF NOT EXISTS OwnerStats (OwnerEmail VARCHAR(255) PRIMARY KEY,"
+                    + " PhotoCount BIGINT NOT NULL DEFAULT 0, TotalBytes BIGINT NOT NULL DEFAULT 0)"),
+
+            // One row per S3 object: the upsert of LambdaInsertDataToDB relies on it, and
+            // LambdaSecureDeleteObject / LambdaResizer look rows up by S3Key with an index seek.
+            // Tables created before S3Key compared bytes are converted first (the full-text index moves to SearchKey),
+            // so keys that only differ in case or accents are not taken for duplicates.
+            // Duplicates left by retried inserts are removed (the newest row of each key is kept),
+            // then the statistics are recomputed and the listings invalidated.
+            new Migration(7, "Unique S3Key",
+                    "ALTER TABLE Photos DROP INDEX ft_photos_description_key",
+                    "ALTER TABLE Photos MODIFY " + S3KEY_COLUMN,
+                    "ALTER TABLE Photos ADD COLUMN " + SEARCHKEY_COLUMN + " AFTER S3Key",
+                    "ALTER TABLE Photos ADD FULLTEXT INDEX ft_photos_description_key (Description, SearchKey)",
+                    "DELETE older FROM Photos older JOIN Photos newer ON newer.S3Key = older.S3Key AND newer.ID > older.ID",
+                    "CREATE UNIQUE INDEX ux_photos_s3key ON Photos (S3Key)",
+                    "DELETE FROM OwnerStats",
+                    "INSERT INTO OwnerStats (OwnerEmail, PhotoCount, TotalBytes)"
+                    + " SELECT OwnerEmail, COUNT(*), COALESCE(SUM(SizeBytes), 0) FROM Photos GROUP BY OwnerEmail",
+                    "UPDATE CatalogVersion SET Version = Version + 1 WHERE ID = 1"),
+
+            // Soft delete (LambdaSecureDeleteObject): readers skip rows with DeletedAt set,
+            // the purge finds the expired ones through the index
+            new Migration(8, "Soft delete",
+                    "ALTER TABLE Photos ADD COLUMN DeletedAt TIMESTAMP NULL",
+                    "CREATE INDEX idx_photos_deleted_at ON Photos (DeletedAt)"),
+
+            // Purge in two steps (LambdaSecureDeleteObject): rows are claimed, their files deleted, then the rows.
+            // A claimed key stays taken for LambdaInsertDataToDB until its row is gone.
+            new Migration(9, "Purge claim",
+                    "ALTER TABLE Photos ADD COLUMN PurgeClaimedAt TIMESTAMP NULL"),
+
+            // Time of the last write of a row by an upload (LambdaInsertDataToDB): LambdaReconcileStorage leaves
+            // recent rows alone, their object may still be on the way. Existing rows get the time of the migration.
+            new Migration(10, "Row creation time",
+                    "ALTER TABLE Photos ADD COLUMN CreatedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP")
+    );
+
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaMigrateSchema", () -> {
+            Database.prime();
+        });
+    }
+
+    @Override
+    public String handleRequest(Map<String, Object> input, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        if (input != null && "warmup".equals(input.get("body"))) {
+            logger.log("Ping received. Warming up ...");
+            return "Warmed up!";
+        }
+
+        try {
+            String result = Database.run(conn -> {
+                lock(conn);
+                try {
+                    return migrate(conn, logger);
+                } finally {
+                    PreparedStatement release = Database.prepare(conn, "SELECT RELEASE_LOCK(?)");
+                    release.setString(1, MIGRATION_LOCK);
+                    release.executeQuery().close();
+                }
+            });
+            logger.log(result);
+            return result;
+        } catch (Exception ex) {
+            logger.log("Migration Error: " + ex.toString());
+            throw new RuntimeException("Migration Failed: " + ex.getMessage());
+        }
+    }
+
+
+    private static String migrate(Connection conn, LambdaLogger logger) throws SQLException {
+        execute(conn, "CREATE TABLE IF NOT EXISTS SchemaVersion (Version INT PRIMARY KEY,"
+                + " Description VARCHAR(255) NOT NULL, AppliedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+
+        Set<Integer> applied = new HashSet<>();
+        try (ResultSet rs = Database.prepare(conn, "SELECT Version FROM SchemaVersion").executeQuery()) {
+            while (rs.next()) {
+                applied.add(rs.getInt("Version"));
+            }
+        }
+
+        List<Integer> newlyApplied = new ArrayList<>();
+        for (Migration migration : MIGRATIONS) {
+            if (applied.contains(migration.version)) continue;
+            logger.log("Applying migration " + migration.version + ": " + migration.description);
+            for (String sql : migration.statements) {
+                execute(conn, sql);
+            }
+            PreparedStatement record = Database.prepare(conn,
+                    "INSERT INTO SchemaVersion (Version, Description) VALUES (?, ?)");
+            record.setInt(1, migration.version);
+            record.setString(2, migration.description);
+            record.executeUpdate();
+            newlyApplied.add(migration.version);
+        }
+
+        int version = MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+        return "Schema at version " + version + (newlyApplied.isEmpty() ? " (up to date)" : ", applied " + newlyApplied);
+    }
+
+
+    // DDL is not prepared (and not cached): every statement runs once
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute(sql);
+        } catch (SQLException e) {
+            if (!ALREADY_APPLIED.contains(e.getErrorCode())) throw e;
+        }
+    }
+
+    private static void lock(Connection conn) throws SQLException {
+        PreparedStatement lock = Database.prepare(conn, "SELECT GET_LOCK(?, ?)");
+        lock.setString(1, MIGRATION_LOCK);
+        lock.setInt(2, LOCK_TIMEOUT_SECONDS);
+        try (ResultSet rs = lock.executeQuery()) {
+            if (!rs.next() || rs.getInt(1) != 1) {
+                throw new SQLException("Another migration is running (lock " + MIGRATION_LOCK + " not obtained)");
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
@@ -31,7 +32,8 @@ Workflow
 CLIENT:
 User selects a file & clicks "Upload" -> Browser reads the file as Base64.
 Browser sends an HTTP POST request to this Lambda URL.
-Payload: { "key": "img.jpg", "description": "...", "content": "base64...", "email": "...", "token": "..." }
+Payload: { "key": "img.jpg", "description": "...", "content": "base64...", "visibility": "private" | "public",
+           "email": "...", "token": "..." }
 
 SERVER:
 1. Receive JSON payload from Frontend. Call handleRequest() to extract necessary fields.
@@ -41,7 +43,10 @@ SERVER:
    - Call generateSecureToken() with the input email & secret key.
    - Compare input token vs expected token..
 
-3. If Auth passed, initialize LambdaClient to invoke Lambda Workers 
+3. If Auth passed, use the LambdaClient (created once per container) to invoke Lambda Workers
+   (then LambdaPublishSnapshot, asynchronously, so the listing snapshot in S3 includes the new photo)
+   If LambdaInsertDataToDB rejects the photo because the owner's quota is exceeded, stop with 403 (nothing uploaded),
+   or because another user owns that key, stop with 409.
 
 4. Return results to Frontend.
 */
@@ -53,10 +58,28 @@ public class LambdaOrchestrator implements RequestHandler<APIGatewayProxyRequest
     private static final String DB_FUNCTION_NAME = "LambdaInsertDataToDB"; 
     private static final String UPLOAD_FUNCTION_NAME = "LambdaUploadObject"; 
     private static final String RESIZER_FUNCTION_NAME = "LambdaResizer"; 
+    private static final String SNAPSHOT_FUNCTION_NAME = "LambdaPublishSnapshot";
     
     private static final String BUCKET_ORIGINAL = "ann-webapp-bucket"; 
     private static final Region AWS_REGION = Region.US_EAST_1;
 
+    // Lambda Client : used to invoke the Worker Lambdas.
+    // Created once per container and reused by warm invocations (LambdaClient is thread-safe)
+    private static final LambdaClient lambdaClient = LambdaClient.builder().region(AWS_REGION).build();
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaOrchestrator", () -> {
+            // "DryRun" only checks the parameters and the permission: the worker does not run
+            lambdaClient.invoke(InvokeRequest.builder()
+                    .functionName(DB_FUNCTION_NAME)
+                    .invocationType("DryRun")
+                    .build());
+            generateSecureToken("priming@cloud26", "priming", null);
+            new JSONObject("{\"key\": \"priming.jpg\", \"content\": \"\"}").getString("key");
+        });
+    }
+
     @Override
     // Handle the request sent to LambdaOrchestrator
     // Context : RAM, runtime, logger
@@ -91,6 +114,7 @@ public class LambdaOrchestrator implements RequestHandler<APIGatewayProxyRequest
             String key = bodyJson.getString("key"); // mandatory
             String description = bodyJson.optString("description", ""); // optional
             String contentBase64 = bodyJson.getString("content"); // mandatory
+            String visibility = bodyJson.optString("visibility", "private"); // optional
             // Extract email & token for security check
             String email = bodyJson.optString("email", "");
             String token = bodyJson.optString("token", "");
@@ -99,112 +123,141 @@ public class LambdaOrchestrator implements RequestHandler<APIGatewayProxyRequest
                 return buildResponse(new JSONObject().put("error", "Unauthorized: Invalid or missing token"), 401);
             }
 
+            // =================================================================================
+            // ACTIVITY 1: DELEGATE INSERT TASK TO "LambdaInsertDataToDB"
+            // =================================================================================
+            try {
+                // Prepare Payload 
+                JSONObject dbPayload = new JSONObject();
+                dbPayload.put("key", key);
+                dbPayload.put("description", description);
+                dbPayload.put("email", email); 
+                dbPayload.put("visibility", visibility);
+                // Counted in the owner's stats and checked against the upload quota
+                dbPayload.put("size", decodedLength(contentBase64));
+                
+                /* Build Invoke Request
+                SdkBytes : pack the payload into bytes for safety transmission
+                invocationType: Synchronous. Orchestrator just continues the task after receiving the response
+                */ 
+                InvokeRequest dbRequest = InvokeRequest.builder()
+                        .functionName(DB_FUNCTION_NAME)
+                        .payload(SdkBytes.fromUtf8String(dbPayload.toString()))
+                        .invocationType("RequestResponse")
+                        .build();
+
+                // lambdaClient.invoke() - send the request to the target Lambda function  
+                // InvokeResponse : receive the response from the target Lambda function  
+                InvokeResponse dbResponse = lambdaClient.invoke(dbRequest);
+
+                // Read the response as string (original in bytes)
+                String dbRespStr = dbResponse.payload().asUtf8String();
+
+                // An exception in the worker also comes back with status 200: FunctionError is set
+                // and the payload is the error, not a result
+                if (dbResponse.functionError() != null
+                        || dbResponse.statusCode() < 200 || dbResponse.statusCode() >= 300) {
+                    throw new RuntimeException("DB Worker failed with status: " + dbResponse.statusCode()
+                            + ", error: " + dbResponse.functionError());
+                }
+
+                JSONObject dbResult = parseWorkerResult(dbRespStr);
+                if (!dbResult.optBoolean("success", true)) {
+                    String error = dbResult.optString("error");
+                    // Over quota: nothing was inserted, the file must not be uploaded either
+                    if (error.equals("quota_exceeded")) {
+                        return buildResponse(new JSONObject().put("error", "Upload quota exceeded"), 403);
+                    }
+                    // Another user already has a photo with this name: uploading would overwrite their file
+                    if (error.equals("key_taken")) {
+                        return buildResponse(new JSONObject().put("error", "A photo with this name already exists"), 409);
+                    }
+                    throw new RuntimeException("DB Worker refused the insert: " + error);
+                }
 
-            // Lambda Client : used to invoke other Lambda functions
-            // Initialize Lambda Client once for all steps
-            // Auto-Close: The 'try(...)' syntax ensures the connection is automatically closed 
-            //      after the block finishes, preventing resource leaks.
-            try (LambdaClient lambdaClient = LambdaClient.builder().region(AWS_REGION).build()) {
+                act1.put("success", true);
+                act1.put("message", "Delegated DB Insert to " + DB_FUNCTION_NAME + ". Response: " + dbRespStr);
+            } catch (Exception ex) {
+                logger.log("DB delegation error: " + ex.toString());
+                act1.put("success", false);
+                act1.put("message", "DB delegation error: " + ex.toString());
+            // not contain 'return' or System.exit() here, for the orchestrator can continue to next activities        
+            }
 
 
 
-                // =================================================================================
-                // ACTIVITY 1: DELEGATE INSERT TASK TO "LambdaInsertDataToDB"
-                // =================================================================================
-                try {
-                    // Prepare Payload 
-                    JSONObject dbPayload = new JSONObject();
-                    dbPayload.put("key", key);
-                    dbPayload.put("description", description);
-                    dbPayload.put("email", email); 
-                    
-                    /* Build Invoke Request
-                    SdkBytes : pack the payload into bytes for safety transmission
-                    invocationType: Synchronous. Orchestrator just continues the task after receiving the response
-                    */ 
-                    InvokeRequest dbRequest = InvokeRequest.builder()
-                            .functionName(DB_FUNCTION_NAME)
-                            .payload(SdkBytes.fromUtf8String(dbPayload.toString()))
-                            .invocationType("RequestResponse")
-                            .build();
-
-                    // lambdaClient.invoke() - send the request to the target Lambda function  
-                    // InvokeResponse : receive the response from the target Lambda function  
-                    InvokeResponse dbResponse = lambdaClient.invoke(dbRequest);
-
-                    // Read the response as string (original in bytes)
-                    String dbRespStr = dbResponse.payload().asUtf8String();
-
-                    if (dbResponse.statusCode() >= 200 && dbResponse.statusCode() < 300) {
-                        act1.put("success", true);
-                        act1.put("message", "Delegated DB Insert to " + DB_FUNCTION_NAME + ". Response: " + dbRespStr);
-                    } else {
-                        throw new RuntimeException("DB Worker failed with status: " + dbResponse.statusCode());
-                    }
-                } catch (Exception ex) {
-                    logger.log("DB delegation error: " + ex.toString());
-                    act1.put("success", false);
-                    act1.put("message", "DB delegation error: " + ex.toString());
-                // not contain 'return' or System.exit() here, for the orchestrator can continue to next activities        
-                }
+            // =================================================================================
+            // ACTIVITY 2: DELEGATE UPLOAD TO "LambdaUploadObject" (the logic is same as Activity 1)
+            // =================================================================================
+            try {
+                JSONObject uploadPayload = new JSONObject();
+                uploadPayload.put("key", key);
+                uploadPayload.put("content", contentBase64);
 
+                InvokeRequest uploadRequest = InvokeRequest.builder()
+                        .functionName(UPLOAD_FUNCTION_NAME)
+                        .payload(SdkBytes.fromUtf8String(uploadPayload.toString()))
+                        .invocationType("RequestResponse")
+                        .build();
 
+                InvokeResponse uploadResponse = lambdaClient.invoke(uploadRequest);
+                String uploadRespStr = uploadResponse.payload().asUtf8String();
 
-                // =================================================================================
-                // ACTIVITY 2: DELEGATE UPLOAD TO "LambdaUploadObject" (the logic is same as Activity 1)
-                // =================================================================================
-                try {
-                    JSONObject uploadPayload = new JSONObject();
-                    uploadPayload.put("key", key);
-                    uploadPayload.put("content", contentBase64);
-
-                    InvokeRequest uploadRequest = InvokeRequest.builder()
-                            .functionName(UPLOAD_FUNCTION_NAME)
-                            .payload(SdkBytes.fromUtf8String(uploadPayload.toString()))
-                            .invocationType("RequestResponse")
-                            .build();
-
-                    InvokeResponse uploadResponse = lambdaClient.invoke(uploadRequest);
-                    String uploadRespStr = uploadResponse.payload().asUtf8String();
-
-                    if (uploadResponse.statusCode() >= 200 && uploadResponse.statusCode() < 300) {
-                        act2.put("success", true);
-                        act2.put("message", "Delegated upload to " + UPLOAD_FUNCTION_NAME + ". Response: " + uploadRespStr);
-                    } else {
-                        act2.put("success", false);
-                        act2.put("message", "Upload Worker failed. Status: " + uploadResponse.statusCode());
-                    }
-                } catch (Exception ex) {
-                    logger.log("Upload delegation error: " + ex.toString());
+                if (uploadResponse.statusCode() >= 200 && uploadResponse.statusCode() < 300) {
+                    act2.put("success", true);
+                    act2.put("message", "Delegated upload to " + UPLOAD_FUNCTION_NAME + ". Response: " + uploadRespStr);
+                } else {
                     act2.put("success", false);
-                    act2.put("message", "Upload delegation error: " + ex.toString());
+                    act2.put("message", "Upload Worker failed. Status: " + uploadResponse.statusCode());
                 }
+            } catch (Exception ex) {
+                logger.log("Upload delegation error: " + ex.toString());
+                act2.put("success", false);
+                act2.put("message", "Upload delegation error: " + ex.toString());
+            }
 
-                // =================================================================================
-                // ACTIVITY 3: DELEGATE RESIZE TO "LambdaResizer"
-                // =================================================================================
-                try {
-                    JSONObject resizePayload = new JSONObject();
-                    resizePayload.put("bucket", BUCKET_ORIGINAL);
-                    resizePayload.put("key", key);
-
-                    InvokeRequest resizeRequest = InvokeRequest.builder()
-                            .functionName(RESIZER_FUNCTION_NAME)
-                            .payload(SdkBytes.fromUtf8String(resizePayload.toString()))
-                            .invocationType("RequestResponse")
-                            .build();
-
-                    InvokeResponse resizeResponse = lambdaClient.invoke(resizeRequest);
-                    String resizeRespStr = resizeResponse.payload().asUtf8String();
+            // =================================================================================
+            // ACTIVITY 3: DELEGATE RESIZE TO "LambdaResizer"
+            // =================================================================================
+            try {
+                JSONObject resizePayload = new JSONObject();
+                resizePayload.put("bucket", BUCKET_ORIGINAL);
+                resizePayload.put("key", key);
+
+                InvokeRequest resizeRequest = InvokeRequest.builder()
+                        .functionName(RESIZER_FUNCTION_NAME)
+                        .payload(SdkBytes.fromUtf8String(resizePayload.toString()))
+                        .invocationType("RequestResponse")
+                        .build();
+
+                InvokeResponse resizeResponse = lambdaClient.invoke(resizeRequest);
+                String resizeRespStr = resizeResponse.payload().asUtf8String();
+
+                act3.put("success", true);
+                act3.put("message", "Resizer invoked. Response: " + resizeRespStr);
+            } catch (Exception ex) {
+                logger.log("Resizer invoke error: " + ex.toString());
+                act3.put("success", false);
+                act3.put("message", "Resizer invoke error: " + ex.toString());
+            }
 
-                    act3.put("success", true);
-                    act3.put("message", "Resizer invoked. Response: " + resizeRespStr);
+            // =================================================================================
+            // AFTER: ASK "LambdaPublishSnapshot" TO REPUBLISH THE LISTING SNAPSHOT
+            // invocationType "Event": asynchronous, the upload response does not wait for it.
+            // The publisher debounces and coalesces these requests (and its schedule catches anything missed),
+            // so a failure here is only logged.
+            // =================================================================================
+            if (act1.optBoolean("success")) {
+                try {
+                    lambdaClient.invoke(InvokeRequest.builder()
+                            .functionName(SNAPSHOT_FUNCTION_NAME)
+                            .payload(SdkBytes.fromUtf8String(new JSONObject().put("trigger", "upload").toString()))
+                            .invocationType("Event")
+                            .build());
                 } catch (Exception ex) {
-                    logger.log("Resizer invoke error: " + ex.toString());
-                    act3.put("success", false);
-                    act3.put("message", "Resizer invoke error: " + ex.toString());
+                    logger.log("Snapshot trigger error: " + ex.toString());
                 }
-            } // LambdaClient closed here
+            }
 
         } catch (JSONException ex) {
             logger.log("JSON Parse error: " + ex.toString());
@@ -223,6 +276,27 @@ public class LambdaOrchestrator implements RequestHandler<APIGatewayProxyRequest
     }
 
 
+    // Result object of a worker. A handler returning a String is sent back by the runtime as a JSON string
+    // ("{\"success\": ...}"), so that string is parsed once more.
+    private static JSONObject parseWorkerResult(String payload) {
+        Object value = new JSONTokener(payload).nextValue();
+        if (value instanceof String) {
+            value = new JSONTokener((String) value).nextValue();
+        }
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Worker result is not a JSON object: " + payload);
+        }
+        return (JSONObject) value;
+    }
+
+
+    // Number of bytes the Base64 content decodes to, without decoding it (3 bytes per 4 characters, minus the padding)
+    private static long decodedLength(String base64) {
+        int padding = base64.endsWith("==") ? 2 : base64.endsWith("=") ? 1 : 0;
+        return (long) base64.length() / 4 * 3 - padding;
+    }
+
+
     // CREDENTIAL CHECK
 
     private boolean isValidUser(String email, String token, LambdaLogger logger) {
@@ -0,0 +1,207 @@
+package vgu.cloud26;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+/*
+WORKFLOW:
+Number of photos and total size (bytes) per owner, for quotas and dashboards.
+
+OwnerStats holds one row per owner and is kept up to date in the same transaction as every write to Photos:
+   - LambdaInsertDataToDB: +1 photo, +SizeBytes (and the upload quota is checked against the new totals),
+   - LambdaSecureDeleteObject: -1 photo, -SizeBytes of the deleted row (+1 / +SizeBytes again on undo).
+Soft-deleted photos (DeletedAt set, waiting for the purge) are not counted.
+So reading the stats of an owner is one primary key lookup, whatever the number of photos.
+
+1. STATS (function URL, PUT/POST): { "email": "...", "token": "..." }
+   - Authentication Check (isValidUser): same HMAC-SHA256 token check as the other Lambdas.
+   - Returns { "email": "...", "photoCount": n, "totalBytes": n } of the caller (zeros for a new user).
+
+2. REBUILD (direct invocation or EventBridge, body "rebuild"): recomputes every row from Photos, in one transaction.
+   Needed whenever the stats are suspected to have drifted.
+   The INSERT ... SELECT locks the Photos rows it reads, so concurrent uploads / deletes wait for the rebuild and
+   then apply their change on top of it. Not available through the function URL (requests from the URL always carry
+   a requestContext).
+
+Required schema (applied by LambdaMigrateSchema, which also fills the table the first time):
+     ALTER TABLE Photos ADD COLUMN SizeBytes BIGINT NOT NULL DEFAULT 0;
+     CREATE TABLE OwnerStats (OwnerEmail VARCHAR(255) PRIMARY KEY,
+                              PhotoCount BIGINT NOT NULL DEFAULT 0, TotalBytes BIGINT NOT NULL DEFAULT 0);
+*/
+public class LambdaOwnerStats implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaOwnerStats", () -> {
+            Database.prime();
+            generateSecureToken("priming@cloud26", "priming", null);
+            buildResponse(200, new JSONObject().put("photoCount", 0).put("totalBytes", 0).toString());
+        });
+    }
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+
+        /*
+        Check if the request is a "keep-alive" ping from AWS EventBridge.
+        If the body contains "warmup", return immediately to keep the JVM initialized
+        without executing the heavy database logic or incurring extra costs.
+        */
+        if (request.getBody() != null && request.getBody().contains("warmup")) {
+            context.getLogger().log("Ping received. Warming up...");
+            return new APIGatewayProxyResponseEvent().withStatusCode(200).withBody("Warmed up!");
+        }
+
+        LambdaLogger logger = context.getLogger();
+
+        // Rebuild job: only for direct invocations (no requestContext)
+        if (request.getRequestContext() == null && "rebuild".equals(request.getBody())) {
+            try {
+                int owners = rebuild();
+                logger.log("OwnerStats rebuilt: " + owners + " owner(s)");
+                return buildResponse(200, new JSONObject().put("owners", owners).toString());
+            } catch (Exception ex) {
+                logger.log("Rebuild Error: " + ex.toString());
+                return buildResponse(500, "{\"error\": \"Rebuild failed\"}");
+            }
+        }
+
+        JSONObject body;
+        try {
+            body = parseBody(request);
+        } catch (Exception ex) {
+            logger.log("JSON Parsing Error: " + ex.getMessage());
+            return buildResponse(400, "{\"error\": \"Invalid JSON body\"}");
+        }
+
+        // Only the owner can read their stats
+        String email = body.optString("email", "");
+        if (!isValidUser(email, body.optString("token", ""), logger)) {
+            return buildResponse(401, "{\"error\": \"Unauthorized: Invalid or missing token\"}");
+        }
+
+        try {
+            JSONObject stats = Database.run(conn -> {
+                PreparedStatement ps = Database.prepare(conn,
+                        "SELECT PhotoCount, TotalBytes FROM OwnerStats WHERE OwnerEmail = ?");
+                ps.setString(1, email);
+                try (ResultSet rs = ps.executeQuery()) {
+                    // No row yet -> the user has never uploaded anything
+                    boolean found = rs.next();
+                    return new JSONObject()
+                            .put("email", email)
+                            .put("photoCount", found ? rs.getLong("PhotoCount") : 0)
+                            .put("totalBytes", found ? rs.getLong("TotalBytes") : 0);
+                }
+            });
+            return buildResponse(200, stats.toString());
+        } catch (Exception ex) {
+            logger.log("DB Error: " + ex.toString());
+            return buildResponse(500, "{\"error\": \"Database error\"}");
+        }
+    }
+
+
+    // REBUILD
+    // Recomputes OwnerStats from scratch. Returns the number of owners.
+    private static int rebuild() throws Exception {
+        return Database.transaction(conn -> {
+            Database.prepare(conn, "DELETE FROM OwnerStats").executeUpdate();
+            return Database.prepare(conn,
+                    "INSERT INTO OwnerStats (OwnerEmail, PhotoCount, TotalBytes)"
+                    + " SELECT OwnerEmail, COUNT(*), COALESCE(SUM(SizeBytes), 0) FROM Photos"
+                    + " WHERE DeletedAt IS NULL GROUP BY OwnerEmail")
+                    .executeUpdate();
+        });
+    }
+
+
+    private static APIGatewayProxyResponseEvent buildResponse(int statusCode, String body) {
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setStatusCode(statusCode);
+        response.setBody(body);
+        response.withIsBase64Encoded(false);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        response.setHeaders(headers);
+        return response;
+    }
+
+    // Check if AWS has encoded the JSON Body (Base64). If so, decode it first. No body -> empty object.
+    private static JSONObject parseBody(APIGatewayProxyRequestEvent request) {
+        String requestBody = request.getBody();
+        if (requestBody == null || requestBody.isEmpty()) return new JSONObject();
+        if (Boolean.TRUE.equals(request.getIsBase64Encoded())) {
+            requestBody = new String(Base64.getDecoder().decode(requestBody), StandardCharsets.UTF_8);
+        }
+        return new JSONObject(requestBody);
+    }
+
+
+    // CHECK CREDENTIAL
+
+    private static boolean isValidUser(String email, String token, LambdaLogger logger) {
+        try {
+            if (email == null || email.isEmpty() || token == null || token.isEmpty()) return false;
+            String secretKey = getSecretKeyFromSSM(logger);
+            String expectedToken = generateSecureToken(email, secretKey, logger);
+            return token.equals(expectedToken);
+        } catch (Exception e) {
+            logger.log("Security Check Error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String getSecretKeyFromSSM(LambdaLogger logger) throws Exception {
+        String parameterName = "cloud26-secret_key";
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        String url = "http://localhost:2773/systemsmanager/parameters/get/?name=" + parameterName + "&withDecryption=true";
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("X-Aws-Parameters-Secrets-Token", System.getenv("AWS_SESSION_TOKEN"))
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        JSONObject jsonResponse = new JSONObject(response.body());
+        return jsonResponse.getJSONObject("Parameter").getString("Value");
+    }
+
+    public static String generateSecureToken(String data, String key, LambdaLogger logger) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            SecretKeySpec secretKeySpec = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+            mac.init(secretKeySpec);
+            byte[] hmacBytes = mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hmacBytes);
+        } catch (Exception e) { return null; }
+    }
+}
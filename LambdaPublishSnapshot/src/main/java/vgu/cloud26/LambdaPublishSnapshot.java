@@ -0,0 +1,299 @@
+package vgu.cloud26;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/*
+WORKFLOW:
+Publishes the photo listing as static files in S3, so LambdaGetPhotosDB can serve gallery views
+without opening a database connection (reads no longer scale the database load).
+
+TRIGGERS:
+   - EventBridge schedule (every minute): publishes whatever changed since the last run.
+   - LambdaOrchestrator, asynchronously (InvocationType "Event") after an upload: { "trigger": "upload" }.
+   Deletions (and undos) and placeholders written by LambdaResizer are picked up by the schedule.
+   Deploy with reserved concurrency 1, so two publishes never run at the same time.
+
+1. Read the published manifest.json (null on the first run).
+   Debounce: a triggered run is skipped when the last snapshot is younger than MIN_PUBLISH_INTERVAL_MILLIS,
+   the next scheduled run publishes the pending changes.
+
+2. In ONE transaction, read CatalogVersion and (only if it differs from the published version) all rows of Photos
+   that are not soft-deleted.
+   InnoDB answers both reads from the same consistent snapshot, so the rows belong exactly to that version.
+   Coalescing: any number of writes between two runs produce a single snapshot.
+
+3. Build the files, gzip-compressed JSON { "items": [...] } ordered by ID:
+      public-<hash>.json.gz            every public photo
+      owners/<owner>-<hash>.json.gz    all photos of one owner (<owner> = SHA-256 of the lower-cased email)
+   <hash> is the SHA-256 of the content: a file that did not change keeps its name and is not uploaded again,
+   so a publish only writes the owners whose photos changed.
+
+4. Upload the new files, then manifest.json, which switches the readers over:
+      { "version": n, "publishedAt": millis, "public": "<key>", "owners": { "<owner>": "<key>" } }
+
+5. Delete the files the new manifest no longer references.
+   A reader still holding the old manifest gets NoSuchKey and falls back to the database.
+
+Bucket: a private SNAPSHOT_BUCKET. Not the photo bucket (LambdaGetObject serves any of its keys to any logged-in user)
+and not the resize bucket (its objects are public).
+*/
+public class LambdaPublishSnapshot implements RequestHandler<Map<String, Object>, String> {
+
+    private static final String SNAPSHOT_BUCKET = System.getenv().getOrDefault("SNAPSHOT_BUCKET", "ann-snapshot-bucket");
+    private static final String MANIFEST_KEY = "manifest.json";
+    private static final long MIN_PUBLISH_INTERVAL_MILLIS = 5_000;
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
+    // Created once per container and reused by warm invocations
+    private static final S3Client s3Client = S3Client.builder()
+            .region(Region.US_EAST_1)
+            .build();
+
+    // Rows of one catalog version, grouped the way they are published
+    private static final class Catalog {
+        final long version;
+        final JSONArray publicItems = new JSONArray();
+        final Map<String, JSONArray> ownerItems = new LinkedHashMap<>();
+
+        Catalog(long version) {
+            this.version = version;
+        }
+    }
+
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaPublishSnapshot", () -> {
+            Database.prime();
+            // Reads the published manifest (S3 client) and builds a file key (JSON + SHA-256)
+            readManifest();
+            fileKey("priming-", new JSONArray().put(new JSONObject().put("ID", 1)));
+        });
+    }
+
+    @Override
+    public String handleRequest(Map<String, Object> input, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        if (input.containsKey("body") && "warmup".equals(input.get("body"))) {
+            logger.log("Ping received. Warming up ...");
+            return "Warmed up!";
+        }
+
+        try {
+            // 1. Published manifest + debounce
+            JSONObject manifest = readManifest();
+            long publishedVersion = manifest != null ? manifest.getLong("version") : -1;
+            if (input.containsKey("trigger") && manifest != null
+                    && System.currentTimeMillis() - manifest.getLong("publishedAt") < MIN_PUBLISH_INTERVAL_MILLIS) {
+                logger.log("Snapshot published less than " + MIN_PUBLISH_INTERVAL_MILLIS + " ms ago, left to the schedule");
+                return "Debounced";
+            }
+
+            // 2. Catalog version + rows from the same consistent snapshot
+            Catalog catalog = Database.transaction(conn -> readCatalog(conn, publishedVersion));
+            if (catalog == null) {
+                logger.log("Snapshot up to date (version " + publishedVersion + ")");
+                return "Up to date";
+            }
+
+            // 3. + 4. Files (only the changed ones are uploaded), then the manifest
+            Set<String> previousKeys = referencedKeys(manifest);
+            int uploads = 0;
+
+            String publicKey = fileKey("public-", catalog.publicItems);
+            if (!previousKeys.contains(publicKey)) {
+                putFile(publicKey, catalog.publicItems);
+                uploads++;
+            }
+            JSONObject owners = new JSONObject();
+            for (Map.Entry<String, JSONArray> owner : catalog.ownerItems.entrySet()) {
+                String ownerKey = fileKey("owners/" + owner.getKey() + "-", owner.getValue());
+                if (!previousKeys.contains(ownerKey)) {
+                    putFile(ownerKey, owner.getValue());
+                    uploads++;
+                }
+                owners.put(owner.getKey(), ownerKey);
+            }
+
+            JSONObject newManifest = new JSONObject()
+                    .put("version", catalog.version)
+                    .put("publishedAt", System.currentTimeMillis())
+                    .put("public", publicKey)
+                    .put("owners", owners);
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(SNAPSHOT_BUCKET)
+                            .key(MANIFEST_KEY)
+                            .contentType("application/json")
+                            .build(),
+                    RequestBody.fromString(newManifest.toString()));
+
+            // 5. Files of the previous snapshot that are not used anymore
+            previousKeys.removeAll(referencedKeys(newManifest));
+            deleteFiles(new ArrayList<>(previousKeys));
+
+            String result = "Published version " + catalog.version + ": " + uploads + " file(s) uploaded, "
+                    + previousKeys.size() + " deleted, " + owners.length() + " owner(s)";
+            logger.log(result);
+            return result;
+
+        } catch (Exception ex) {
+            logger.log("Snapshot Error: " + ex.toString());
+            throw new RuntimeException("Snapshot Failed: " + ex.getMessage());
+        }
+    }
+
+
+    // null when the catalog is still at 'publishedVersion'
+    private static Catalog readCatalog(Connection conn, long publishedVersion) throws SQLException {
+        long version;
+        PreparedStatement versionStatement = Database.prepare(conn, "SELECT Version FROM CatalogVersion WHERE ID = 1");
+        try (ResultSet rs = versionStatement.executeQuery()) {
+            version = rs.next() ? rs.getLong("Version") : 0;
+        }
+        if (version == publishedVersion) {
+            return null;
+        }
+
+        Catalog catalog = new Catalog(version);
+        PreparedStatement rows = Database.prepare(conn,
+                "SELECT ID, Description, S3Key, OwnerEmail, Visibility, Placeholder FROM Photos"
+                + " WHERE DeletedAt IS NULL ORDER BY ID");
+        // Rows are handed over one by one instead of being buffered by the driver
+        rows.setFetchSize(Integer.MIN_VALUE);
+        try (ResultSet rs = rows.executeQuery()) {
+            while (rs.next()) {
+                JSONObject item = new JSONObject();
+                item.put("ID", rs.getLong("ID"));
+                item.put("Description", rs.getString("Description"));
+                item.put("S3Key", rs.getString("S3Key"));
+                item.put("OwnerEmail", rs.getString("OwnerEmail"));
+                item.put("Visibility", rs.getString("Visibility"));
+                // null until LambdaResizer has processed the photo (JSONObject skips null values)
+                item.put("Placeholder", rs.getString("Placeholder"));
+
+                String owner = ownerHash(rs.getString("OwnerEmail"));
+                catalog.ownerItems.computeIfAbsent(owner, k -> new JSONArray()).put(item);
+                if ("public".equals(rs.getString("Visibility"))) {
+                    catalog.publicItems.put(item);
+                }
+            }
+        }
+        return catalog;
+    }
+
+
+    // MANIFEST
+    private static JSONObject readManifest() {
+        try {
+            byte[] manifest = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(SNAPSHOT_BUCKET)
+                    .key(MANIFEST_KEY)
+                    .build()).asByteArray();
+            return new JSONObject(new String(manifest, StandardCharsets.UTF_8));
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    private static Set<String> referencedKeys(JSONObject manifest) {
+        Set<String> keys = new HashSet<>();
+        if (manifest == null) return keys;
+        keys.add(manifest.getString("public"));
+        JSONObject owners = manifest.getJSONObject("owners");
+        for (String owner : owners.keySet()) {
+            keys.add(owners.getString(owner));
+        }
+        return keys;
+    }
+
+
+    // FILES
+    // Content-addressed key: same items -> same key
+    private static String fileKey(String prefix, JSONArray items) {
+        return prefix + sha256Hex(fileContent(items)) + ".json.gz";
+    }
+
+    private static String fileContent(JSONArray items) {
+        return new JSONObject().put("items", items).toString();
+    }
+
+    private static void putFile(String key, JSONArray items) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(fileContent(items).getBytes(StandardCharsets.UTF_8));
+        }
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(SNAPSHOT_BUCKET)
+                        .key(key)
+                        .contentType("application/json")
+                        .contentEncoding("gzip")
+                        .build(),
+                RequestBody.fromBytes(compressed.toByteArray()));
+    }
+
+    private static void deleteFiles(List<String> keys) {
+        for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_DELETE) {
+            List<ObjectIdentifier> batch = new ArrayList<>();
+            for (String key : keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_DELETE))) {
+                batch.add(ObjectIdentifier.builder().key(key).build());
+            }
+            s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(SNAPSHOT_BUCKET)
+                    .delete(Delete.builder().objects(batch).quiet(true).build())
+                    .build());
+        }
+    }
+
+
+    // Owner id used in keys and in the manifest: emails are not written in clear
+    // (LambdaGetPhotosDB computes the same hash for the caller)
+    private static String ownerHash(String email) {
+        return sha256Hex(email == null ? "" : email.toLowerCase());
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/*
+WORKFLOW:
+Finds (and optionally repairs) the mismatches between the photo bucket, the thumbnail bucket and the Photos table.
+They appear because LambdaOrchestrator goes on after a failed activity (a row without its upload, an upload
+without its row, ...) and when a purge could not delete every file.
+Invoked directly or by an EventBridge schedule: {} for a report only, { "repair": true } to also repair.
+
+1. Three sorted streams, read one element at a time:
+      - ann-webapp-bucket   ListObjectsV2 pages (1000 keys), in S3 key order (UTF-8 bytes)
+      - ann-resize-bucket   same, prefix "resized-" stripped (stripping a common prefix keeps the order)
+      - Photos              "SELECT S3Key ... ORDER BY S3Key", read in the order of ux_photos_s3key and streamed by the
+                            driver: S3Key is utf8mb4_0900_bin (code point order = the same byte order)
+   Soft-deleted rows are rows too: their files are still there until the purge.
+
+2. Merge-join on the key (compareKeys, code point order = UTF-8 byte order): at every step take the smallest key
+   of the three heads, classify it, and advance the streams that had it. Memory stays constant whatever the
+   number of keys: one S3 page per bucket, one row, the report counters and at most MAX_SAMPLES / MAX_REPAIRS_PER_RUN
+   keys per mismatch kind.
+      objectsWithoutRow          original without a row              -> repair: delete the original and its thumbnail
+      rowsWithoutObject          row without an original             -> repair: delete the row (+ OwnerStats, version)
+      thumbnailsWithoutOriginal  thumbnail without an original       -> repair: delete the thumbnail
+      missingThumbnails          row and original but no thumbnail   -> report only (JPG / PNG only: the Resizer failed)
+   Objects and rows younger than MIN_AGE (S3 LastModified, Photos.CreatedAt) are not reported: they can belong to
+   an upload in progress. LambdaOrchestrator writes the row first and the object after it, so a row without its
+   object is normal for the duration of an upload, and an object can be written after the scan of its row.
+
+3. Repair ("repair": true), after the scan, at most MAX_REPAIRS_PER_RUN keys per kind (the next run takes the rest).
+   Every mismatch is checked again just before it is repaired, so a key fixed in the meantime (a retried upload,
+   a purge finishing) is left alone.
+
+4. Returns (and logs) the report:
+      { "repair": bool, "matched": n, "skippedRecent": n,
+        "<kind>": { "count": n, "samples": [...], "repaired": n }, ... }
+*/
+public class LambdaReconcileStorage implements RequestHandler<Map<String, Object>, String> {
+
+    private static final String BUCKET_NAME = "ann-webapp-bucket";
+    private static final String THUMBNAIL_BUCKET_NAME = "ann-resize-bucket";
+    private static final String RESIZED_PREFIX = "resized-";
+
+    private static final Duration MIN_AGE = Duration.ofHours(1);
+    // Row written less than MIN_AGE ago (parameter: MIN_AGE in seconds), by the database clock
+    private static final String RECENT_ROW = "CreatedAt > NOW() - INTERVAL ? SECOND";
+    private static final int MAX_SAMPLES = 100;
+    // Also the largest multi-object delete S3 accepts: one DeleteObjects call per bucket and kind
+    private static final int MAX_REPAIRS_PER_RUN = 1000;
+
+    // Created once per container and reused by warm invocations
+    private static final S3Client s3Client = S3Client.builder()
+            .region(Region.US_EAST_1)
+            .build();
+
+    // One kind of mismatch: how many, the first keys (for the report) and the keys to repair
+    private static final class Mismatch {
+        final String name;
+        long count;
+        int repaired;
+        final List<String> samples = new ArrayList<>();
+        final List<String> toRepair = new ArrayList<>();
+
+        Mismatch(String name) {
+            this.name = name;
+        }
+
+        void add(String key, LambdaLogger logger) {
+            count++;
+            logger.log(name + ": " + key);
+            if (samples.size() < MAX_SAMPLES) samples.add(key);
+            if (toRepair.size() < MAX_REPAIRS_PER_RUN) toRepair.add(key);
+        }
+
+        JSONObject toJSON() {
+            return new JSONObject().put("count", count).put("samples", samples).put("repaired", repaired);
+        }
+    }
+
+    // Photos row of a key found by the scan
+    private static final class Row {
+        final String email;
+        final long sizeBytes;
+        // Soft-deleted (see LambdaSecureDeleteObject): not counted in OwnerStats anymore
+        final boolean deleted;
+        // Written by an upload less than MIN_AGE ago: its object may still be on the way
+        final boolean recent;
+
+        Row(String email, long sizeBytes, boolean deleted, boolean recent) {
+            this.email = email;
+            this.sizeBytes = sizeBytes;
+            this.deleted = deleted;
+            this.recent = recent;
+        }
+    }
+
+    private static final class Report {
+        long matched;
+        long skippedRecent;
+        final Mismatch objectsWithoutRow = new Mismatch("objectsWithoutRow");
+        final Mismatch rowsWithoutObject = new Mismatch("rowsWithoutObject");
+        final Mismatch thumbnailsWithoutOriginal = new Mismatch("thumbnailsWithoutOriginal");
+        final Mismatch missingThumbnails = new Mismatch("missingThumbnails");
+    }
+
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaReconcileStorage", () -> {
+            Database.prime();
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            compareKeys("priming", "priming.jpg");
+        });
+    }
+
+    @Override
+    public String handleRequest(Map<String, Object> input, Context context) {
+        LambdaLogger logger = context.getLogger();
+
+        if (input.containsKey("body") && "warmup".equals(input.get("body"))) {
+            logger.log("Ping received. Warming up ...");
+            return "Warmed up!";
+        }
+
+        boolean repair = Boolean.TRUE.equals(input.get("repair"));
+        try {
+            // 1. + 2. A new report if the work runs again on a new connection (see Database.run)
+            Report report = Database.run(conn -> scan(conn, logger));
+
+            // 3. Repairs, on the connection freed by the scan
+            if (repair) {
+                report.objectsWithoutRow.repaired = repairObjectsWithoutRow(report.objectsWithoutRow.toRepair);
+                report.thumbnailsWithoutOriginal.repaired =
+                        repairThumbnailsWithoutOriginal(report.thumbnailsWithoutOriginal.toRepair);
+                report.rowsWithoutObject.repaired = repairRowsWithoutObject(report.rowsWithoutObject.toRepair);
+            }
+
+            // 4. Report
+            JSONObject result = new JSONObject()
+                    .put("repair", repair)
+                    .put("matched", report.matched)
+                    .put("skippedRecent", report.skippedRecent);
+            for (Mismatch mismatch : List.of(report.objectsWithoutRow, report.rowsWithoutObject,
+                    report.thumbnailsWithoutOriginal, report.missingThumbnails)) {
+                result.put(mismatch.name, mismatch.toJSON());
+            }
+            logger.log("Reconciliation report: " + result);
+            return result.toString();
+
+        } catch (Exception ex) {
+            logger.log("Reconciliation Error: " + ex.toString());
+            throw new RuntimeException("Reconciliation Failed: " + ex.getMessage());
+        }
+    }
+
+
+    // SCAN
+    private static Report scan(Connection conn, LambdaLogger logger) throws SQLException {
+        Report report = new Report();
+        Instant recent = Instant.now().minus(MIN_AGE);
+
+        // Pages are requested lazily, one at a time, while the iterators advance
+        Iterator<S3Object> originals = list(BUCKET_NAME, null);
+        Iterator<S3Object> thumbnails = list(THUMBNAIL_BUCKET_NAME, RESIZED_PREFIX);
+
+        PreparedStatement rows = Database.prepare(conn, "SELECT S3Key, " + RECENT_ROW + " AS Recent FROM Photos"
+                + " ORDER BY S3Key");
+        rows.setLong(1, MIN_AGE.getSeconds());
+        // Rows are handed over one by one instead of being buffered by the driver
+        rows.setFetchSize(Integer.MIN_VALUE);
+        try (ResultSet rs = rows.executeQuery()) {
+            S3Object original = next(originals);
+            S3Object thumbnail = next(thumbnails);
+            String row = rs.next() ? rs.getString("S3Key") : null;
+
+            while (original != null || thumbnail != null || row != null) {
+                String originalKey = original != null ? original.key() : null;
+                String thumbnailKey = thumbnail != null ? thumbnail.key().substring(RESIZED_PREFIX.length()) : null;
+                String key = min(min(originalKey, thumbnailKey), row);
+
+                boolean hasOriginal = key.equals(originalKey);
+                boolean hasThumbnail = key.equals(thumbnailKey);
+                boolean hasRow = key.equals(row);
+
+                if (hasRow && !hasOriginal) {
+                    if (rs.getBoolean("Recent")) {
+                        report.skippedRecent++;
+                    } else {
+                        report.rowsWithoutObject.add(key, logger);
+                    }
+                } else if (hasOriginal && !hasRow) {
+                    if (original.lastModified().isAfter(recent)) {
+                        report.skippedRecent++;
+                    } else {
+                        report.objectsWithoutRow.add(key, logger);
+                    }
+                } else if (hasThumbnail && !hasOriginal) {
+                    if (thumbnail.lastModified().isAfter(recent)) {
+                        report.skippedRecent++;
+                    } else {
+                        report.thumbnailsWithoutOriginal.add(key, logger);
+                    }
+                } else if (!hasThumbnail && isResizable(key) && !original.lastModified().isAfter(recent)) {
+                    report.missingThumbnails.add(key, logger);
+                } else {
+                    report.matched++;
+                }
+
+                if (hasOriginal) original = next(originals);
+                if (hasThumbnail) thumbnail = next(thumbnails);
+                if (hasRow) row = rs.next() ? rs.getString("S3Key") : null;
+            }
+        }
+        return report;
+    }
+
+    // Same extensions as LambdaResizer: other files never get a thumbnail
+    private static boolean isResizable(String key) {
+        String lower = key.toLowerCase();
+        return lower.endsWith(".jpg") || lower.endsWith(".png");
+    }
+
+    private static Iterator<S3Object> list(String bucketName, String prefix) {
+        return s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .prefix(prefix)
+                .build()).contents().iterator();
+    }
+
+    private static S3Object next(Iterator<S3Object> objects) {
+        return objects.hasNext() ? objects.next() : null;
+    }
+
+    // Smaller key, a null key (stream at its end) is larger than any other
+    private static String min(String a, String b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return compareKeys(a, b) <= 0 ? a : b;
+    }
+
+    // Code point order, which is the UTF-8 byte order used by S3 and by the utf8mb4_0900_bin collation of S3Key.
+    // String.compareTo() compares UTF-16 chars and orders some characters differently.
+    static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) return Integer.compare(ca, cb);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Boolean.compare(i < a.length(), j < b.length());
+    }
+
+
+    // REPAIRS
+    // Originals whose key still has no row: deleted with their thumbnail
+    private static int repairObjectsWithoutRow(List<String> keys) throws SQLException {
+        if (keys.isEmpty()) return 0;
+        Set<String> withRow = Database.run(conn -> existingRows(conn, keys, false)).keySet();
+        List<String> orphans = new ArrayList<>();
+        List<String> thumbnails = new ArrayList<>();
+        for (String key : keys) {
+            if (withRow.contains(key)) continue;
+            orphans.add(key);
+            thumbnails.add(RESIZED_PREFIX + key);
+        }
+        deleteObjects(THUMBNAIL_BUCKET_NAME, thumbnails);
+        deleteObjects(BUCKET_NAME, orphans);
+        return orphans.size();
+    }
+
+    // Thumbnails whose original is still missing
+    private static int repairThumbnailsWithoutOriginal(List<String> keys) {
+        List<String> thumbnails = new ArrayList<>();
+        for (String key : keys) {
+            if (!objectExists(BUCKET_NAME, key)) thumbnails.add(RESIZED_PREFIX + key);
+        }
+        deleteObjects(THUMBNAIL_BUCKET_NAME, thumbnails);
+        return thumbnails.size();
+    }
+
+    // Rows whose original is still missing, deleted in one transaction with the owners' stats and the catalog version.
+    // The originals are checked before the transaction, and again once the rows are locked (an upload of the key
+    // writes its row first, then the object): only real orphans are checked while the locks are held.
+    // A row (re)written by an upload since the scan is recent again and left alone.
+    private static int repairRowsWithoutObject(List<String> keys) throws SQLException {
+        List<String> candidates = new ArrayList<>();
+        for (String key : keys) {
+            if (!objectExists(BUCKET_NAME, key)) candidates.add(key);
+        }
+        if (candidates.isEmpty()) return 0;
+        return Database.transaction(conn -> {
+            Map<String, Row> rows = existingRows(conn, candidates, true);
+            List<String> orphans = new ArrayList<>();
+            // Photos and bytes removed per owner, sorted so concurrent writers lock OwnerStats rows in the same order
+            Map<String, long[]> removed = new TreeMap<>();
+            for (Map.Entry<String, Row> row : rows.entrySet()) {
+                if (row.getValue().recent || objectExists(BUCKET_NAME, row.getKey())) continue;
+                orphans.add(row.getKey());
+                if (row.getValue().deleted) continue;
+                long[] owner = removed.computeIfAbsent(row.getValue().email, k -> new long[2]);
+                owner[0]++;
+                owner[1] += row.getValue().sizeBytes;
+            }
+            if (orphans.isEmpty()) return 0;
+
+            try (PreparedStatement delete = conn.prepareStatement(
+                    "DELETE FROM Photos WHERE S3Key IN (" + placeholders(orphans.size()) + ")")) {
+                for (int i = 0; i < orphans.size(); i++) {
+                    delete.setString(i + 1, orphans.get(i));
+                }
+                delete.executeUpdate();
+            }
+            PreparedStatement subtract = Database.prepare(conn,
+                    "UPDATE OwnerStats SET PhotoCount = GREATEST(PhotoCount - ?, 0), TotalBytes = GREATEST(TotalBytes - ?, 0)"
+                    + " WHERE OwnerEmail = ?");
+            for (Map.Entry<String, long[]> owner : removed.entrySet()) {
+                subtract.setLong(1, owner.getValue()[0]);
+                subtract.setLong(2, owner.getValue()[1]);
+                subtract.setString(3, owner.getKey());
+                subtract.executeUpdate();
+            }
+            Database.prepare(conn, "UPDATE CatalogVersion SET Version = Version + 1 WHERE ID = 1").executeUpdate();
+            return orphans.size();
+        });
+    }
+
+    // Rows of these keys (S3Key compares bytes, see LambdaMigrateSchema, like String.equals).
+    // The IN list changes with every run, so the statement is prepared here and not cached.
+    private static Map<String, Row> existingRows(Connection conn, List<String> keys, boolean lock) throws SQLException {
+        Map<String, Row> rows = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT S3Key, OwnerEmail, SizeBytes, DeletedAt IS NOT NULL AS Deleted, " + RECENT_ROW + " AS Recent"
+                + " FROM Photos WHERE S3Key IN (" + placeholders(keys.size()) + ")" + (lock ? " FOR UPDATE" : ""))) {
+            ps.setLong(1, MIN_AGE.getSeconds());
+            for (int i = 0; i < keys.size(); i++) {
+                ps.setString(i + 2, keys.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows.put(rs.getString("S3Key"), new Row(rs.getString("OwnerEmail"), rs.getLong("SizeBytes"),
+                            rs.getBoolean("Deleted"), rs.getBoolean("Recent")));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+
+    // S3
+    private static boolean objectExists(String bucketName, String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    // At most MAX_REPAIRS_PER_RUN keys: one multi-object delete
+    private static void deleteObjects(String bucketName, List<String> keys) {
+        if (keys.isEmpty()) return;
+        List<ObjectIdentifier> objects = new ArrayList<>();
+        for (String key : keys) {
+            objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+        s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder().objects(objects).quiet(true).build())
+                .build());
+    }
+}
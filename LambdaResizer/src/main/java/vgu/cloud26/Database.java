@@ -0,0 +1,303 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+/*
+Access to the RDS MySQL database (Cloud26), shared by all warm invocations of a Lambda container.
+The same file is copied into every module that talks to the database (LambdaGetPhotosDB, LambdaInsertDataToDB,
+LambdaSecureDeleteObject, LambdaResizer, LambdaDownloadAlbum, LambdaPublishSnapshot, LambdaOwnerStats,
+LambdaMigrateSchema, LambdaReconcileStorage), keep the copies identical.
+
+Before, every query loaded the driver, signed a new IAM token with a new RdsUtilities / credentials provider
+and opened a new TLS connection. Now:
+   - Connection: opened once and kept open between invocations. It is only validated (one ping) when it has been
+     idle for more than VALIDATE_AFTER_IDLE_MILLIS, a broken connection is replaced by a new one.
+   - IAM token: valid 15 minutes, it is reused until TOKEN_REFRESH_MARGIN_MILLIS before it expires
+     (it is only needed to open a connection).
+   - Prepared statements: cached per connection by SQL text (prepare()), at most MAX_CACHED_STATEMENTS.
+     They must NOT be closed by the caller, only their ResultSets.
+   - Reconnect: run() / transaction() run the work again on a new connection once,
+     when the connection was lost (SQLState 08xxx) before anything was committed.
+   - Deadlocks: InnoDB rolls the whole transaction of the victim back (error 1213, SQLState 40001), so
+     transaction() runs it again, at most MAX_DEADLOCK_RETRIES times, after a short random pause.
+   - Batches: rewriteBatchedStatements lets the driver send a JDBC batch of INSERTs as multi-row INSERT statements.
+   - Priming (see Priming): prime() opens the connection during an on-demand init phase. During a SnapStart init
+     it only loads the driver and signs a throwaway token: no connection or token ends up in the snapshot
+     (there is no checkpoint hook to close them), the first request opens them.
+
+Usage:
+   String owner = Database.run(connection -> {
+       PreparedStatement ps = Database.prepare(connection, "SELECT OwnerEmail FROM Photos WHERE S3Key = ?");
+       ps.setString(1, key);
+       try (ResultSet rs = ps.executeQuery()) { return rs.next() ? rs.getString(1) : null; }
+   });
+*/
+public final class Database {
+
+    private static final String RDS_INSTANCE_HOSTNAME = "database-1.cc38mew6e9au.us-east-1.rds.amazonaws.com";
+    private static final int RDS_INSTANCE_PORT = 3306;
+    private static final String DB_USER = "cloud26";
+    private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+
+    private static final long TOKEN_LIFETIME_MILLIS = 15 * 60 * 1000;
+    private static final long TOKEN_REFRESH_MARGIN_MILLIS = 2 * 60 * 1000;
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30 * 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final int MAX_CACHED_STATEMENTS = 50;
+    private static final int MAX_DEADLOCK_RETRIES = 3;
+    private static final long DEADLOCK_BACKOFF_MILLIS = 20;
+    private static final String SNAP_START_INIT = "snap-start";
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    // Created once: building the credentials provider is the expensive part of signing a token
+    private static final RdsUtilities rdsUtilities = RdsUtilities.builder()
+            .region(Region.US_EAST_1)
+            .credentialsProvider(DefaultCredentialsProvider.create())
+            .build();
+
+    private static Connection connection;
+    private static long lastUsed;
+    // accessOrder = true -> the least recently used statement is closed when there are too many
+    private static final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= MAX_CACHED_STATEMENTS) return false;
+            try {
+                eldest.getValue().close();
+            } catch (SQLException ignored) {
+                // Closed with the connection anyway
+            }
+            return true;
+        }
+    };
+
+    private static String authToken;
+    private static long authTokenExpiresAt;
+
+    private Database() {
+    }
+
+
+    // Runs the work in auto-commit mode (one statement = one transaction)
+    public static synchronized <T> T run(Work<T> work) throws SQLException {
+        try {
+            return work.run(connection());
+        } catch (SQLException e) {
+            if (!isConnectionLost(e)) throw e;
+            reset();
+            return work.run(connection());
+        }
+    }
+
+
+    // Runs the work in one transaction: committed if it returns, rolled back if it throws.
+    // If the commit itself fails the work is NOT run again (it may have been committed).
+    public static synchronized <T> T transaction(Work<T> work) throws SQLException {
+        boolean reconnected = false;
+        int deadlocks = 0;
+        while (true) {
+            try {
+                return runInTransaction(work);
+            } catch (SQLException e) {
+                if (e instanceof CommitFailedException) throw unwrap(e);
+                if (isConnectionLost(e) && !reconnected) {
+                    reconnected = true;
+                    reset();
+                } else if (isDeadlock(e) && deadlocks < MAX_DEADLOCK_RETRIES) {
+                    deadlocks++;
+                    pause(deadlocks);
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    // Cached statement of the current connection, with its parameters cleared
+    public static synchronized PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = conn.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+
+    // Opens the connection and runs one query, so the driver, TLS and IAM signing code are loaded and run once
+    // during the init phase instead of in the first request.
+    // SnapStart init: the snapshot must not hold a connection or a token, so only the classes are loaded and run.
+    public static void prime() throws SQLException {
+        if (SNAP_START_INIT.equals(System.getenv("AWS_LAMBDA_INITIALIZATION_TYPE"))) {
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("MySQL driver not found", e);
+            }
+            signAuthToken();
+            return;
+        }
+        run(conn -> {
+            try (ResultSet rs = prepare(conn, "SELECT 1").executeQuery()) {
+                return rs.next();
+            }
+        });
+    }
+
+
+    private static <T> T runInTransaction(Work<T> work) throws SQLException {
+        Connection conn = connection();
+        conn.setAutoCommit(false);
+        try {
+            T result = work.run(conn);
+            try {
+                conn.commit();
+            } catch (SQLException e) {
+                throw new CommitFailedException(e);
+            }
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+                // The connection is gone, the server rolls back by itself
+            }
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ignored) {
+                // Replaced on the next call if broken
+            }
+        }
+    }
+
+
+    // The open connection, validated if it was idle for a while, or a new one
+    private static Connection connection() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (connection != null) {
+            boolean usable = !connection.isClosed()
+                    && (now - lastUsed < VALIDATE_AFTER_IDLE_MILLIS || connection.isValid(VALIDATION_TIMEOUT_SECONDS));
+            if (usable) {
+                lastUsed = now;
+                return connection;
+            }
+            reset();
+        }
+
+        try {
+            /* Load the jdbc driver class into memory to ensures the driver
+               is registered with the DriverManager before use. */
+            Class.forName("com.mysql.cj.jdbc.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("MySQL driver not found", e);
+        }
+        connection = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+        lastUsed = now;
+        return connection;
+    }
+
+
+    // Closes the connection (and with it all cached statements), the next call opens a new one
+    private static void reset() {
+        statements.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+                // Already broken
+            }
+            connection = null;
+        }
+    }
+
+
+    // SQLState class 08 = connection exception (Communications link failure, connection closed, ...)
+    private static boolean isConnectionLost(SQLException e) {
+        SQLException cause = unwrap(e);
+        String state = cause.getSQLState();
+        return (state != null && state.startsWith("08"))
+                || cause instanceof SQLRecoverableException
+                || cause instanceof SQLTransientConnectionException;
+    }
+
+    // 1213 ER_LOCK_DEADLOCK: this transaction was chosen as the victim and rolled back, nothing of it remains
+    private static boolean isDeadlock(SQLException e) {
+        return e.getErrorCode() == 1213 || "40001".equals(e.getSQLState());
+    }
+
+    // Random pause, longer after every deadlock, so the transactions that collided do not collide again
+    private static void pause(int attempt) throws SQLException {
+        try {
+            Thread.sleep(DEADLOCK_BACKOFF_MILLIS * attempt + (long) (Math.random() * DEADLOCK_BACKOFF_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry a deadlocked transaction", e);
+        }
+    }
+
+    private static SQLException unwrap(SQLException e) {
+        return e instanceof CommitFailedException ? (SQLException) e.getCause() : e;
+    }
+
+    private static final class CommitFailedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        CommitFailedException(SQLException cause) {
+            super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+        }
+    }
+
+
+    // CONFIGURE CONNECTION PROPERTIES
+    // Packages the necessary settings (User, Password, SSL) into a Properties object.
+    private static Properties setMySqlConnectionProperties() {
+        Properties mysqlConnectionProperties = new Properties();
+        mysqlConnectionProperties.setProperty("useSSL", "true");
+        mysqlConnectionProperties.setProperty("user", DB_USER);
+        mysqlConnectionProperties.setProperty("password", getAuthToken());
+        mysqlConnectionProperties.setProperty("rewriteBatchedStatements", "true");
+        return mysqlConnectionProperties;
+    }
+
+
+    // IAM token, signed again only shortly before the previous one expires
+    private static String getAuthToken() {
+        long now = System.currentTimeMillis();
+        if (authToken == null || now >= authTokenExpiresAt - TOKEN_REFRESH_MARGIN_MILLIS) {
+            authToken = signAuthToken();
+            authTokenExpiresAt = now + TOKEN_LIFETIME_MILLIS;
+        }
+        return authToken;
+    }
+
+    private static String signAuthToken() {
+        return rdsUtilities.generateAuthenticationToken(GenerateAuthenticationTokenRequest.builder()
+                .hostname(RDS_INSTANCE_HOSTNAME)
+                .port(RDS_INSTANCE_PORT)
+                .username(DB_USER)
+                .build());
+    }
+}
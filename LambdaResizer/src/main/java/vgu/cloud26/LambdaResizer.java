@@ -4,16 +4,25 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher; 
 import java.util.regex.Pattern;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
@@ -22,6 +31,7 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
@@ -36,10 +46,19 @@ Object - are the values coresponding to each label :
 
 Output - <String> 
 Return a simple JSON string indicating the result of success/failure
+
+Besides the 100px thumbnail, the Resizer also builds a tiny placeholder (LQIP) from the same decoded image:
+a ~16px JPEG, encoded as a "data:image/jpeg;base64,..." URI (usually < 1KB), and stores it in the
+'Placeholder' column of the Photos row. LambdaGetPhotosDB returns it with the listing, so the browser can
+paint a blurred preview immediately, before the real thumbnail arrives from S3.
 */
 public class LambdaResizer implements RequestHandler<Map<String, Object>, String> {
 
     private static final float MAX_DIMENSION = 100;
+    // Placeholder (LQIP) size - small enough to be inlined in the listing JSON
+    private static final float PLACEHOLDER_DIMENSION = 16;
+    private static final float PLACEHOLDER_QUALITY = 0.5f;
+
     // Regex pattern to extract the file extension from the filename (Key)
     // Example: "image.test.jpg" -> extracts "jpg"
     private final String REGEX = ".*\\.([^\\.]*)";
@@ -53,6 +72,29 @@ public class LambdaResizer implements RequestHandler<Map<String, Object>, String
     private final String PNG_TYPE = "png";
     private final String PNG_MIME = "image/png";
 
+    // Created once per container and reused by warm invocations
+    private static final S3Client s3Client = S3Client.builder().build();
+
+
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaResizer", () -> {
+            Database.prime();
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket("ann-resize-bucket").key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            // ImageIO: PNG encode / decode, thumbnail (JPEG) and placeholder of a small image
+            LambdaResizer resizer = new LambdaResizer();
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), resizer.PNG_TYPE, png);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+            ImageIO.write(resizer.resizeImage(image, MAX_DIMENSION), resizer.JPG_TYPE, new ByteArrayOutputStream());
+            resizer.createPlaceholder(image);
+        });
+    }
 
     @Override
     /*
@@ -103,8 +145,6 @@ public class LambdaResizer implements RequestHandler<Map<String, Object>, String
             }
 
 
-            // Initialize S3 Client
-            S3Client s3Client = S3Client.builder().build();
             // Dowload the original image from S3
             // InputStream allows us to read the raw data bytes flowing from S3 into Lambda's memory.
             InputStream s3Object = getObject(s3Client, srcBucket, srcKey);
@@ -112,7 +152,17 @@ public class LambdaResizer implements RequestHandler<Map<String, Object>, String
             // Decode InputStream into a manipulate-able Image object 
             // "srcImage" allows us to access pixel data (width, height, colors)
             BufferedImage srcImage = ImageIO.read(s3Object);
-            BufferedImage newImage = resizeImage(srcImage);
+            BufferedImage newImage = resizeImage(srcImage, MAX_DIMENSION);
+
+            // Build the placeholder from the already decoded image (no extra S3 download).
+            // A failure here must not break the thumbnail, so it is only logged.
+            String placeholder = null;
+            try {
+                placeholder = createPlaceholder(srcImage);
+                savePlaceholder(srcKey, placeholder, logger);
+            } catch (Exception e) {
+                logger.log("Placeholder Error: " + e.toString());
+            }
 
 
             // Create a buffer (a container) to hold the binary data of the new image
@@ -126,7 +176,7 @@ public class LambdaResizer implements RequestHandler<Map<String, Object>, String
             try {
                 putObject(s3Client, outputStream, dstBucket, dstKey, imageType, logger);
                 logger.log("Object successfully resized and uploaded to: " + dstBucket);
-                return "Object successfully resized";             
+                return "Object successfully resized" + (placeholder != null ? " (placeholder stored)" : "");             
             } catch (S3Exception e) { 
                 logger.log("AWS S3 Error: " + e.awsErrorDetails().errorMessage());
                 return e.awsErrorDetails().errorMessage();
@@ -179,16 +229,65 @@ public class LambdaResizer implements RequestHandler<Map<String, Object>, String
 
 
 
-    private BufferedImage resizeImage(BufferedImage srcImage) {
+    // PLACEHOLDER (LQIP)
+    // Shrink the image to fit within 16x16 and encode it as a low quality JPEG data URI.
+    // JPEG is used for every source type: the placeholder is painted on white, so PNG transparency is not needed.
+    private String createPlaceholder(BufferedImage srcImage) throws Exception {
+        BufferedImage tinyImage = resizeImage(srcImage, PLACEHOLDER_DIMENSION);
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(JPG_TYPE).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(PLACEHOLDER_QUALITY);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageOutput);
+            writer.write(null, new IIOImage(tinyImage, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return "data:" + JPG_MIME + ";base64," + Base64.getEncoder().encodeToString(outputStream.toByteArray());
+    }
+
+
+    // Store the placeholder in the Photos row of this key.
+    // The row is inserted by LambdaInsertDataToDB (Activity 1 of the Orchestrator) before the Resizer runs.
+    private void savePlaceholder(String s3Key, String placeholder, LambdaLogger logger) throws Exception {
+        // The placeholder is part of the listing: committed together with the new catalog version
+        int rows = Database.transaction(conn -> {
+            PreparedStatement ps = Database.prepare(conn, "UPDATE Photos SET Placeholder = ? WHERE S3Key = ?");
+            ps.setString(1, placeholder);
+            ps.setString(2, s3Key);
+            int updated = ps.executeUpdate();
+            if (updated > 0) {
+                bumpCatalogVersion(conn);
+            }
+            return updated;
+        });
+        logger.log("Placeholder stored (" + placeholder.length() + " chars). Rows affected: " + rows);
+    }
+
+
+    // CATALOG VERSION
+    // Tells LambdaGetPhotosDB that the listing changed (its cached pages and ETags become stale).
+    // Called in the same transaction as the write, so readers never see the new version without the new data.
+    private static void bumpCatalogVersion(Connection conn) throws SQLException {
+        Database.prepare(conn, "UPDATE CatalogVersion SET Version = Version + 1 WHERE ID = 1").executeUpdate();
+    }
+
+
+    private BufferedImage resizeImage(BufferedImage srcImage, float maxDimension) {
         int srcHeight = srcImage.getHeight();
         int srcWidth = srcImage.getWidth();
 
-        // Math.min - return the smaller scaling factor, to guanrantee the resized image fits within 100x100
-        /* Ex : 500*200 image - Get scaling factor = 0.2 -> resized image = 100*40 */
+        // Math.min - return the smaller scaling factor, to guanrantee the resized image fits within maxDimension x maxDimension
+        /* Ex : 500*200 image, maxDimension = 100 - Get scaling factor = 0.2 -> resized image = 100*40 */
         float scalingFactor = Math.min(
-                MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-        int width = (int) (scalingFactor * srcWidth);
-        int height = (int) (scalingFactor * srcHeight);
+                maxDimension / srcWidth, maxDimension / srcHeight);
+        // At least 1 pixel, very thin images would otherwise round down to 0
+        int width = Math.max(1, (int) (scalingFactor * srcWidth));
+        int height = Math.max(1, (int) (scalingFactor * srcHeight));
 
         // Create a new blank image (BufferedImage) with the calculated dimensions
         // TYPE_INT_RGB - 3 bytes per pixel (Red, Green, Blue), no transparency
@@ -0,0 +1,46 @@
+package vgu.cloud26;
+
+/*
+Startup priming of a Lambda, for SnapStart and for ordinary cold starts.
+The same file is copied into every module, keep the copies identical (and Java 8 compatible, see LambdaResizer).
+
+Each handler registers one Hook from its static initializer, i.e. during the init phase. It runs right away, once:
+it goes through the code the first request would otherwise load, initialize and interpret: SDK clients and one
+harmless request, MySQL driver (Database.prime()), HMAC, JSON, ImageIO, ... Failures are only logged: priming is
+an optimization.
+
+With SnapStart the init phase runs once, when a version is published, and every new execution environment starts
+from a snapshot of its memory (loaded classes, JIT code, primed clients). There are no checkpoint / restore hooks
+(that needs the org.crac library, which is not part of the deployment packages), so priming must not leave
+anything behind that restored environments may not share: during a SnapStart init Database.prime() opens no
+connection and keeps no IAM token.
+
+With SnapStart enabled, the EventBridge "warmup" pings are not needed anymore: they kept one environment warm,
+a snapshot makes every new environment start warm. The handlers still answer them while the schedules exist.
+*/
+public final class Priming {
+
+    @FunctionalInterface
+    public interface Hook {
+        void prime() throws Exception;
+    }
+
+    private Priming() {
+    }
+
+
+    public static synchronized void register(String name, Hook hook) {
+        long start = System.nanoTime();
+        try {
+            hook.prime();
+            log(name + " primed in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (Exception | LinkageError e) {
+            log(name + " priming failed: " + e);
+        }
+    }
+
+    // No Lambda logger during the init phase: standard output also goes to CloudWatch Logs
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
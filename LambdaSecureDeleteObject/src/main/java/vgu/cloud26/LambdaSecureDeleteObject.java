@@ -6,18 +6,24 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.amazonaws.services.lambda.runtime.Context;
@@ -26,13 +32,18 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.rds.RdsUtilities;
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
 /*
 WORKFLOW:
@@ -52,20 +63,32 @@ SERVER:
    - Compare the 'input token' with the 'expected token'
 
 
-3. Authorization Check (isOwner):
-   - Connect to RDS Database using JDBC.
-   - Execute SQL: "SELECT OwnerEmail FROM Photos WHERE S3Key = ?".
-   - Compare: 'the email from DB' with 'the user email'.
+3. Authorization Check + soft delete (tombstoneRow), ONE statement in a transaction on the warm connection (see Database):
+   - "UPDATE Photos ... SET DeletedAt = NOW() WHERE S3Key = ? AND OwnerEmail = ? AND DeletedAt IS NULL", which also
+     subtracts the photo from the owner's OwnerStats and bumps the catalog version. No row matched -> 403.
+   The photo disappears from every listing, search, album and snapshot (they all filter on DeletedAt IS NULL).
+   The S3 objects are NOT touched here: the request costs one database round trip.
 
 
-4. Execution (If Authorizarion checks pass): 
-   - Delete the thumbnail from the "Resize Bucket" (S3).
-   - Delete the original file from the "Main Bucket" (S3).
-   - Delete the record from RDS Database ("DELETE FROM Photos...").
+4. Response: Returns the result to the Frontend (also go through API Gateway), 
+   prompting the Frontend to refresh the list (and offer an "Undo").
 
 
-5. Response: Returns the result to the Frontend (also go through API Gateway), 
-   prompting the Frontend to refresh the list.
+UNDO: { "key": "filename.jpg", "undo": true, "email": "...", "token": "..." }
+   Within PURGE_GRACE_SECONDS of the delete, clears DeletedAt and adds the photo back to the stats (restoreRow).
+   404 when the photo is not deleted, not the caller's, or too old.
+
+
+BATCH: { "keys": ["a.jpg", "b.jpg", ...], "email": "...", "token": "..." } (at most MAX_BATCH_KEYS keys)
+   The token is checked once, ownership of all keys is read with one IN query and the caller's rows are
+   tombstoned with one UPDATE (see deleteBatch()).
+   Returns a result per key; keys that are not the caller's are left untouched.
+
+
+PURGE (EventBridge schedule or direct invocation, body "purge"; not available through the function URL):
+   Claims the rows tombstoned more than PURGE_GRACE_SECONDS ago (PurgeClaimedAt), deletes their originals,
+   thumbnails and renditions with one S3 multi-object delete per bucket and batch, then deletes the rows that are
+   still claimed (see purge()).
 
  */
 
@@ -75,13 +98,40 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
     private static final String BUCKET_NAME = "ann-webapp-bucket"; 
     private static final String THUMBNAIL_BUCKET_NAME = "ann-resize-bucket"; 
     private static final String RESIZED_PREFIX = "resized-"; 
+    // Renditions of LambdaGetObject (see RenditionService there): renditions/<key>/<size>-<fit>/<ETag>.<format>
+    private static final String RENDITIONS_PREFIX = "renditions/";
     private static final Region AWS_REGION = Region.US_EAST_1; 
+    // Largest multi-object delete S3 accepts, also the largest batch accepted here
+    private static final int MAX_BATCH_KEYS = 1000;
+
+    // Created once per container and reused by warm invocations (S3Client is thread-safe)
+    private static final S3Client s3Client = S3Client.builder()
+                                                     .region(AWS_REGION)
+                                                     .build();
+
+    // PURGE Config: deleted photos can be restored ("undo") for PURGE_GRACE_SECONDS, then the purge removes them
+    private static final long PURGE_GRACE_SECONDS = Long.parseLong(System.getenv().getOrDefault("PURGE_GRACE_SECONDS", "86400"));
+    private static final int PURGE_BATCH_SIZE = 500;
+    private static final int PURGE_S3_ATTEMPTS = 3;
+    // A claim older than this belongs to a purge that died (Lambda timeout is at most 15 minutes): claimed again
+    private static final int PURGE_CLAIM_TIMEOUT_SECONDS = 15 * 60;
+    // Stop starting new batches when less time than this is left in the invocation
+    private static final int PURGE_TIME_MARGIN_MILLIS = 20_000;
     
-    // Database Config
-    private static final String RDS_INSTANCE_HOSTNAME = "database-1.cc38mew6e9au.us-east-1.rds.amazonaws.com";
-    private static final int RDS_INSTANCE_PORT = 3306;
-    private static final String DB_USER = "cloud26";
-    private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaSecureDeleteObject", () -> {
+            Database.prime();
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            generateSecureToken("priming@cloud26", "priming", null);
+            new JSONObject("{\"key\": \"priming.jpg\", \"keys\": []}").optJSONArray("keys");
+        });
+    }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
@@ -92,7 +142,17 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
 
 
         LambdaLogger logger = context.getLogger();
+
+        // Purge job: only for direct invocations / EventBridge (requests from the function URL carry a requestContext)
+        if (request.getRequestContext() == null && "purge".equals(request.getBody())) {
+            return purge(headers, context);
+        }
+
         String key = null;
+        // { "key": ..., "undo": true } restores a photo deleted less than PURGE_GRACE_SECONDS ago
+        boolean undo = false;
+        // Batch delete: { "keys": [...] } instead of "key"
+        List<String> keys = null;
         String requestBody = request.getBody();     
         // Initialize email and token variables 
         String email = "";
@@ -103,16 +163,35 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
         if (requestBody != null && !requestBody.isEmpty()) {
             try {
                 JSONObject bodyJSON = new JSONObject(requestBody);
-                key = bodyJSON.getString("key");
+                key = bodyJSON.optString("key", null);
+                undo = bodyJSON.optBoolean("undo", false);
+                JSONArray keysJSON = bodyJSON.optJSONArray("keys");
+                if (keysJSON != null) {
+                    // Each key once, in the order of the request
+                    Set<String> uniqueKeys = new LinkedHashSet<>();
+                    for (int i = 0; i < keysJSON.length(); i++) {
+                        String batchKey = keysJSON.optString(i, "");
+                        if (!batchKey.isEmpty()) uniqueKeys.add(batchKey);
+                    }
+                    keys = new ArrayList<>(uniqueKeys);
+                }
                 email = bodyJSON.optString("email", "");
                 token = bodyJSON.optString("token", "");       
             } catch (Exception e) {
                 context.getLogger().log("JSON Parsing Error: " + e.getMessage());
             }
         } 
+
+        if (keys != null && (keys.isEmpty() || keys.size() > MAX_BATCH_KEYS)) {
+            APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+            response.setStatusCode(400); // Bad Request
+            response.setBody("{\"error\": \"'keys' must contain 1 to " + MAX_BATCH_KEYS + " keys.\"}");
+            response.setHeaders(headers);
+            return response;
+        }
         
         // 2. Check if key is missing
-        if (key == null || key.isEmpty()) {
+        if (keys == null && (key == null || key.isEmpty())) {
             APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
             response.setStatusCode(400); // Bad Request
             response.setBody("{\"error\": \"Missing object key in request body.\"}");
@@ -129,52 +208,42 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
             return response;
         }
 
-        // Check Owner's Email
-        if (!isOwner(key, email, logger)) {
-            APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
-            response.setStatusCode(403);
-            response.setBody("{\"error\": \"Forbidden: You are not the owner of this file\"}");
-            response.setHeaders(headers);
-            return response;
+        if (keys != null) {
+            return deleteBatch(keys, email, headers, context);
         }
-        
 
-        // Create a connection to S3
-        S3Client s3Client = S3Client.builder()
-                                     .region(AWS_REGION)
-                                     .build();
-        
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setHeaders(headers);
 
-        // Try to delete both the original and the resized objects
-        try {     
-            String resizedKey = RESIZED_PREFIX + key;         
-            // 1. Delete S3 Objects
-            deleteS3Object(s3Client, THUMBNAIL_BUCKET_NAME, resizedKey, context);
-            deleteS3Object(s3Client, BUCKET_NAME, key, context);
-            context.getLogger().log("Successfully deleted objects from S3: " + key + " and " + resizedKey);
+        try {
+            if (undo) {
+                // Within the grace period the photo is listed again as it was
+                if (!restoreRow(key, email)) {
+                    response.setStatusCode(404);
+                    response.setBody("{\"error\": \"Nothing to restore: not deleted, not yours, or already purged\"}");
+                    return response;
+                }
+                response.setStatusCode(200);
+                response.setBody("{\"message\": \"Restored: " + key + "\"}");
+                return response;
+            }
 
-            // 2. Delete file record from RDS database
-            deleteFromDatabase(key, context);
+            // Ownership check + tombstone, one statement (see tombstoneRow). The files are removed later by the purge.
+            if (!tombstoneRow(key, email)) {
+                response.setStatusCode(403);
+                response.setBody("{\"error\": \"Forbidden: You are not the owner of this file\"}");
+                return response;
+            }
             context.getLogger().log("DB Delete Success: " + key);
 
-            // 5. Return success
+            // Return success
             response.setStatusCode(200);
-            response.setBody("{\"message\": \"Objects deleted successfully from S3 and DB: " + key + "\"}");
-            response.setHeaders(headers);
-  
-        } catch (S3Exception e) {
-            context.getLogger().log("S3 Deletion Error: " + e.awsErrorDetails().errorMessage());
-            // Return S3 error (e.g., 404 Not Found, 403 Forbidden) 
-            response.setStatusCode(e.statusCode()); 
-            response.setBody("{\"error\": \"S3 error: " + e.awsErrorDetails().errorMessage() + "\"}");
-            response.setHeaders(headers);
-            
+            response.setBody("{\"message\": \"Deleted: " + key + "\", \"undoSeconds\": " + PURGE_GRACE_SECONDS + "}");
+
         } catch (Exception e) {
             context.getLogger().log("General Error: " + e.getMessage());
             response.setStatusCode(500);
             response.setBody("{\"error\": \"Internal server error: " + e.getMessage() + "\"}");
-            response.setHeaders(headers);
         }
         
         return response;
@@ -182,8 +251,6 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
     
 
 
-
-
     private boolean isValidUser(String email, String token, LambdaLogger logger) {
         try {
             if (email == null || email.isEmpty() || token == null || token.isEmpty()) return false;
@@ -195,28 +262,6 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
 
 
 
-    private boolean isOwner(String s3Key, String userEmail, LambdaLogger logger) {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            Properties props = setMySqlConnectionProperties();
-            try (Connection conn = DriverManager.getConnection(JDBC_URL, props);
-                 PreparedStatement ps = conn.prepareStatement("SELECT OwnerEmail FROM Photos WHERE S3Key = ?")) {       
-                ps.setString(1, s3Key);
-                ResultSet rs = ps.executeQuery();    
-                if (rs.next()) {
-                    String owner = rs.getString("OwnerEmail");
-                    return userEmail.equalsIgnoreCase(owner);
-                    }
-                }
-        } catch (Exception e) {
-            logger.log("DB Check Owner Error: " + e.getMessage());
-        }
-        return false;
-    }
-
-
-
-
     private String getSecretKeyFromSSM(LambdaLogger logger) throws Exception {
         String parameterName = "cloud26-secret_key"; 
 
@@ -260,60 +305,339 @@ public class LambdaSecureDeleteObject implements RequestHandler<APIGatewayProxyR
 
 
     
-    private void deleteS3Object(S3Client s3Client, String bucketName, String key, Context context) throws S3Exception {
-        context.getLogger().log("Attempting to delete key '" + key + "' from bucket: " + bucketName);
-        DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder().bucket(bucketName).key(key).build();
-        s3Client.deleteObject(deleteRequest);
+    // Soft delete in ONE statement: the row is tombstoned only if it is the caller's and not deleted yet.
+    // The same multi-table UPDATE takes the photo out of the owner's stats and bumps the catalog version;
+    // those two rows only change when the Photos row matched. Returns false if nothing matched.
+    // Run in a transaction, not with Database.run(): run() repeats the work after a lost connection, and if the
+    // first UPDATE had been committed the repeat matches nothing and a successful delete would answer 403.
+    // transaction() only repeats work that was rolled back, a failed commit is reported (500) as it is.
+    private static boolean tombstoneRow(String s3Key, String email) throws SQLException {
+        return Database.transaction(conn -> {
+            // Prepare the SQL statement with placeholders (?) to prevent SQL Injection attacks.
+            PreparedStatement ps = Database.prepare(conn,
+                    "UPDATE Photos p JOIN CatalogVersion v ON v.ID = 1"
+                    + " LEFT JOIN OwnerStats s ON s.OwnerEmail = p.OwnerEmail"
+                    + " SET p.DeletedAt = NOW(), v.Version = v.Version + 1,"
+                    + " s.PhotoCount = GREATEST(s.PhotoCount - 1, 0), s.TotalBytes = GREATEST(s.TotalBytes - p.SizeBytes, 0)"
+                    + " WHERE p.S3Key = ? AND p.OwnerEmail = ? AND p.DeletedAt IS NULL");
+            ps.setString(1, s3Key);
+            ps.setString(2, email);
+            return ps.executeUpdate() > 0;
+        });
     }
 
+    // Undo of tombstoneRow(), only while the purge cannot have claimed the row (DeletedAt within the grace period).
+    // The quota is not checked again: the photo was already counted before the delete.
+    // In a transaction for the same reason as tombstoneRow(): a repeated, already committed restore would answer 404.
+    private static boolean restoreRow(String s3Key, String email) throws SQLException {
+        return Database.transaction(conn -> {
+            PreparedStatement ps = Database.prepare(conn,
+                    "UPDATE Photos p JOIN CatalogVersion v ON v.ID = 1"
+                    + " LEFT JOIN OwnerStats s ON s.OwnerEmail = p.OwnerEmail"
+                    + " SET p.DeletedAt = NULL, v.Version = v.Version + 1,"
+                    + " s.PhotoCount = s.PhotoCount + 1, s.TotalBytes = s.TotalBytes + p.SizeBytes"
+                    + " WHERE p.S3Key = ? AND p.OwnerEmail = ? AND p.DeletedAt > NOW() - INTERVAL ? SECOND"
+                    + " AND p.PurgeClaimedAt IS NULL");
+            ps.setString(1, s3Key);
+            ps.setString(2, email);
+            ps.setLong(3, PURGE_GRACE_SECONDS);
+            return ps.executeUpdate() > 0;
+        });
+    }
 
-    private void deleteFromDatabase(String s3Key, Context context) throws Exception {
-        /* Load the jdbc driver class into memory to ensures the driver 
-            is registered with the DriverManager before use. */
-        // Acts as a "Translator" enabling the Java application to communicate with the MySQL database.
-        Class.forName("com.mysql.cj.jdbc.Driver");
-        Properties props = setMySqlConnectionProperties();
+    // BATCH DELETE
+    // Same steps as a single delete, each done once for the whole batch:
+    //   ownership of every key in one IN query -> one UPDATE tombstoning the caller's rows (files: see PURGE).
+    // Response: { "deleted": n, "results": { "<key>": "deleted" | "not_found" | "forbidden" } }
+    private APIGatewayProxyResponseEvent deleteBatch(List<String> keys, String email, Map<String, String> headers,
+            Context context) {
+        LambdaLogger logger = context.getLogger();
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setHeaders(headers);
 
-        // Establish the database connection with "Try-with-resources" syntax.
-        // "Try-with-resources" : Automatically closes the Connecion when execution finishes (even if an error occurs).
-        try (Connection conn = DriverManager.getConnection(JDBC_URL, props);
-        // Prepare the SQL statement with placeholders (?) to prevent SQL Injection attacks.
-             PreparedStatement ps = conn.prepareStatement("DELETE FROM Photos WHERE S3Key = ?")) {
-            
-            ps.setString(1, s3Key);
-            int rows = ps.executeUpdate();
-            
-            if(rows > 0) {
-                context.getLogger().log("Deleted " + rows + " row(s) from RDS for key: " + s3Key);
-            } else {
-                context.getLogger().log("No records found in RDS for key: " + s3Key);
+        try {
+            // 1. Ownership of all keys at once (index seek on the unique S3Key per key), compared by the database
+            Map<String, Boolean> ownership = Database.run(conn -> findOwnership(conn, keys, email));
+            List<String> owned = new ArrayList<>();
+            for (Map.Entry<String, Boolean> row : ownership.entrySet()) {
+                if (row.getValue()) owned.add(row.getKey());
+            }
+
+            // 2. Tombstones, in one statement. Only the keys it actually tombstoned are reported as deleted.
+            Set<String> deleted = owned.isEmpty()
+                    ? Collections.emptySet()
+                    : Database.transaction(conn -> tombstoneRows(conn, owned, email));
+            logger.log("Batch delete: " + deleted.size() + " row(s) tombstoned");
+
+            JSONObject resultsJSON = new JSONObject();
+            for (String key : keys) {
+                Boolean isOwner = ownership.get(key);
+                if (deleted.contains(key)) {
+                    resultsJSON.put(key, "deleted");
+                } else if (isOwner == null || isOwner) {
+                    // No row, or deleted / taken over by a concurrent request since step 1
+                    resultsJSON.put(key, "not_found");
+                } else {
+                    resultsJSON.put(key, "forbidden");
+                }
+            }
+
+            response.setStatusCode(200);
+            response.setBody(new JSONObject().put("deleted", deleted.size()).put("results", resultsJSON).toString());
+
+        } catch (Exception e) {
+            logger.log("Batch Delete Error: " + e.toString());
+            response.setStatusCode(500);
+            response.setBody("{\"error\": \"Internal server error: " + e.getMessage() + "\"}");
+        }
+        return response;
+    }
+
+    // S3Key -> owned by the caller, for the keys that have a (not deleted) row. OwnerEmail = ? is compared with the
+    // column collation, like every other ownership check. The IN list changes with every batch, so the statement is
+    // prepared here and not cached.
+    private static Map<String, Boolean> findOwnership(Connection conn, List<String> keys, String email) throws SQLException {
+        // S3Key compares bytes (see LambdaMigrateSchema), like String.equals
+        Map<String, Boolean> ownership = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT S3Key, OwnerEmail = ? AS Owned FROM Photos"
+                + " WHERE S3Key IN (" + placeholders(keys.size()) + ") AND DeletedAt IS NULL")) {
+            ps.setString(1, email);
+            for (int i = 0; i < keys.size(); i++) {
+                ps.setString(i + 2, keys.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ownership.put(rs.getString("S3Key"), rs.getBoolean("Owned"));
+                }
+            }
+        }
+        return ownership;
+    }
+
+    // Tombstones the rows of the caller among these keys, with the owner's stats and the catalog version, and returns
+    // the keys it tombstoned. OwnerEmail = ? is checked again: a key deleted or taken over since findOwnership() is not.
+    // The rows are locked by the SELECT, so the UPDATE tombstones exactly these keys.
+    private static Set<String> tombstoneRows(Connection conn, List<String> keys, String email) throws SQLException {
+        String where = " WHERE S3Key IN (" + placeholders(keys.size()) + ") AND OwnerEmail = ? AND DeletedAt IS NULL";
+        Set<String> tombstoned = new HashSet<>();
+        long bytes = 0;
+        try (PreparedStatement locked = conn.prepareStatement(
+                "SELECT S3Key, SizeBytes FROM Photos" + where + " FOR UPDATE")) {
+            bind(locked, keys, email);
+            try (ResultSet rs = locked.executeQuery()) {
+                while (rs.next()) {
+                    tombstoned.add(rs.getString("S3Key"));
+                    bytes += rs.getLong("SizeBytes");
+                }
+            }
+        }
+        if (tombstoned.isEmpty()) return tombstoned;
+
+        List<String> lockedKeys = new ArrayList<>(tombstoned);
+        try (PreparedStatement tombstone = conn.prepareStatement("UPDATE Photos SET DeletedAt = NOW()" + where)) {
+            bind(tombstone, lockedKeys, email);
+            tombstone.executeUpdate();
+        }
+        subtractOwnerStats(conn, email, tombstoned.size(), bytes);
+        bumpCatalogVersion(conn);
+        return tombstoned;
+    }
+
+    private static void bind(PreparedStatement ps, List<String> keys, String email) throws SQLException {
+        for (int i = 0; i < keys.size(); i++) {
+            ps.setString(i + 1, keys.get(i));
+        }
+        ps.setString(keys.size() + 1, email);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    // PURGE
+    // Removes for good what was deleted more than PURGE_GRACE_SECONDS ago, PURGE_BATCH_SIZE photos at a time,
+    // until nothing is left or the invocation is about to time out. For each batch:
+    //   1. claimExpiredRows: the rows get PurgeClaimedAt (committed). LambdaInsertDataToDB treats a claimed key as
+    //      taken, so nobody can upload that key again while its files are being deleted.
+    //   2. The original, the thumbnail and the renditions of every claimed key are deleted from S3. Failures are
+    //      retried PURGE_S3_ATTEMPTS times.
+    //   3. deleteClaimedRows: the rows whose files are all gone are deleted, if they are still claimed.
+    // A key whose files could not all be deleted keeps its claimed row: a later purge claims it again after
+    // PURGE_CLAIM_TIMEOUT_SECONDS and retries.
+    private APIGatewayProxyResponseEvent purge(Map<String, String> headers, Context context) {
+        LambdaLogger logger = context.getLogger();
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setHeaders(headers);
+        int purged = 0;
+        int s3Failures = 0;
+
+        try {
+            while (context.getRemainingTimeInMillis() > PURGE_TIME_MARGIN_MILLIS) {
+                List<String> keys = Database.transaction(LambdaSecureDeleteObject::claimExpiredRows);
+                if (keys.isEmpty()) break;
+
+                Set<String> failedKeys = deleteFiles(keys, logger);
+                List<String> done = new ArrayList<>();
+                for (String key : keys) {
+                    if (failedKeys.contains(key)) {
+                        logger.log("Purge: files not deleted, row kept: " + key);
+                    } else {
+                        done.add(key);
+                    }
+                }
+                if (!done.isEmpty()) {
+                    purged += Database.transaction(conn -> deleteClaimedRows(conn, done));
+                }
+                s3Failures += failedKeys.size();
+                if (keys.size() < PURGE_BATCH_SIZE) break;
             }
+            logger.log("Purge: " + purged + " photo(s) purged, " + s3Failures + " S3 failure(s)");
+            response.setStatusCode(200);
+            response.setBody(new JSONObject().put("purged", purged).put("s3Failures", s3Failures).toString());
+
+        } catch (Exception e) {
+            logger.log("Purge Error: " + e.toString());
+            response.setStatusCode(500);
+            response.setBody("{\"error\": \"Purge failed after " + purged + " photo(s): " + e.getMessage() + "\"}");
         }
+        return response;
     }
 
-    // Used for both deletionFromDatabase and isOwner methods
-    private static Properties setMySqlConnectionProperties() throws Exception {
-        // Create a Properties object containing: database username, authentication token (password), and SSL settings.
-        // SSL (Secure Sockets Layer) secure the connection between the application (browser) & the database (server).
-        // This 'props' object will be passed to DriverManager to establish the connection.
-        Properties mysqlProps = new Properties();
-        mysqlProps.setProperty("useSSL", "true");
-        mysqlProps.setProperty("user", DB_USER);
-        mysqlProps.setProperty("password", generateAuthToken());
-        return mysqlProps;
+    // Claims the oldest expired tombstones (index on DeletedAt), and those of a purge that died, and returns their keys.
+    // Stats and catalog version were already updated by the soft delete.
+    private static List<String> claimExpiredRows(Connection conn) throws SQLException {
+        List<String> keys = new ArrayList<>();
+        PreparedStatement expired = Database.prepare(conn,
+                "SELECT S3Key FROM Photos WHERE DeletedAt < NOW() - INTERVAL ? SECOND"
+                + " AND (PurgeClaimedAt IS NULL OR PurgeClaimedAt < NOW() - INTERVAL ? SECOND)"
+                + " ORDER BY DeletedAt LIMIT ? FOR UPDATE");
+        expired.setLong(1, PURGE_GRACE_SECONDS);
+        expired.setInt(2, PURGE_CLAIM_TIMEOUT_SECONDS);
+        expired.setInt(3, PURGE_BATCH_SIZE);
+        try (ResultSet rs = expired.executeQuery()) {
+            while (rs.next()) {
+                keys.add(rs.getString("S3Key"));
+            }
+        }
+        if (keys.isEmpty()) return keys;
+        try (PreparedStatement claim = conn.prepareStatement(
+                "UPDATE Photos SET PurgeClaimedAt = NOW() WHERE S3Key IN (" + placeholders(keys.size()) + ")")) {
+            for (int i = 0; i < keys.size(); i++) {
+                claim.setString(i + 1, keys.get(i));
+            }
+            claim.executeUpdate();
+        }
+        return keys;
+    }
+
+    // Deletes the rows of these keys that are still claimed and deleted (a row removed in the meantime,
+    // e.g. by LambdaReconcileStorage, is simply not counted). Returns the number of rows deleted.
+    private static int deleteClaimedRows(Connection conn, List<String> keys) throws SQLException {
+        try (PreparedStatement delete = conn.prepareStatement(
+                "DELETE FROM Photos WHERE S3Key IN (" + placeholders(keys.size()) + ")"
+                + " AND PurgeClaimedAt IS NOT NULL AND DeletedAt IS NOT NULL")) {
+            for (int i = 0; i < keys.size(); i++) {
+                delete.setString(i + 1, keys.get(i));
+            }
+            return delete.executeUpdate();
+        }
+    }
+
+    // Deletes the original, the thumbnail and the renditions of these keys. Returns the keys with a file left in S3.
+    private Set<String> deleteFiles(List<String> keys, LambdaLogger logger) {
+        Set<String> failedKeys = new HashSet<>();
+        // Object of the resize bucket -> key of the photo it belongs to
+        Map<String, String> derived = new HashMap<>();
+        for (String key : keys) {
+            derived.put(RESIZED_PREFIX + key, key);
+            try {
+                for (String rendition : listRenditions(key)) {
+                    derived.put(rendition, key);
+                }
+            } catch (SdkException e) {
+                logger.log("Purge: renditions of " + key + " not listed: " + e.getMessage());
+                failedKeys.add(key);
+            }
+        }
+        for (String failed : deleteWithRetries(THUMBNAIL_BUCKET_NAME, new ArrayList<>(derived.keySet()), logger)) {
+            failedKeys.add(derived.get(failed));
+        }
+        failedKeys.addAll(deleteWithRetries(BUCKET_NAME, keys, logger));
+        return failedKeys;
+    }
+
+    // Keys of the renditions of one photo. The prefix "renditions/a/" also lists the renditions of "a/b.jpg":
+    // those have more than one '/' after the prefix and are skipped.
+    private static List<String> listRenditions(String key) {
+        String prefix = RENDITIONS_PREFIX + key + "/";
+        List<String> renditions = new ArrayList<>();
+        for (S3Object object : s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+                .bucket(THUMBNAIL_BUCKET_NAME)
+                .prefix(prefix)
+                .build()).contents()) {
+            String rest = object.key().substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (slash > 0 && slash == rest.lastIndexOf('/')) {
+                renditions.add(object.key());
+            }
+        }
+        return renditions;
+    }
+
+    // Multi-object delete, the failed keys are tried again (a whole failed call counts as all keys failed)
+    private Set<String> deleteWithRetries(String bucketName, List<String> keys, LambdaLogger logger) {
+        List<String> remaining = keys;
+        Set<String> failed = new HashSet<>(keys);
+        for (int attempt = 1; attempt <= PURGE_S3_ATTEMPTS && !remaining.isEmpty(); attempt++) {
+            try {
+                failed = deleteS3Objects(s3Client, bucketName, remaining);
+            } catch (SdkException e) {
+                logger.log("Purge: DeleteObjects on " + bucketName + " failed (attempt " + attempt + "): " + e.getMessage());
+                failed = new HashSet<>(remaining);
+            }
+            remaining = new ArrayList<>(failed);
+        }
+        return failed;
+    }
+
+    // Multi-object delete (at most MAX_BATCH_KEYS keys per call). Returns the keys S3 could not delete.
+    private Set<String> deleteS3Objects(S3Client s3Client, String bucketName, List<String> keys) {
+        Set<String> failed = new HashSet<>();
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_KEYS) {
+            List<ObjectIdentifier> objects = new ArrayList<>();
+            for (String key : keys.subList(start, Math.min(keys.size(), start + MAX_BATCH_KEYS))) {
+                objects.add(ObjectIdentifier.builder().key(key).build());
+            }
+            // quiet: S3 only reports the failed keys
+            DeleteObjectsResponse result = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucketName)
+                    .delete(Delete.builder().objects(objects).quiet(true).build())
+                    .build());
+            for (S3Error error : result.errors()) {
+                failed.add(error.key());
+            }
+        }
+        return failed;
+    }
+
+
+    // OWNER STATS
+    // Removes deleted photos from their owner's totals, in the transaction of the delete
+    private static void subtractOwnerStats(Connection conn, String email, long photos, long bytes) throws SQLException {
+        PreparedStatement subtract = Database.prepare(conn,
+                "UPDATE OwnerStats SET PhotoCount = GREATEST(PhotoCount - ?, 0),"
+                + " TotalBytes = GREATEST(TotalBytes - ?, 0) WHERE OwnerEmail = ?");
+        subtract.setLong(1, photos);
+        subtract.setLong(2, bytes);
+        subtract.setString(3, email);
+        subtract.executeUpdate();
     }
 
-    // Helper to Generate IAM Auth Token to access RDS
-    private static String generateAuthToken() {
-        // RdsUtilities - provide support tools for RDS operations.(in this case, auth token generation)
-        RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-        return rdsUtilities.generateAuthenticationToken(GenerateAuthenticationTokenRequest.builder()
-                .hostname(RDS_INSTANCE_HOSTNAME)
-                .port(RDS_INSTANCE_PORT)
-                .username(DB_USER)
-                .region(AWS_REGION)
-                .credentialsProvider(DefaultCredentialsProvider.create())
-                .build());
+    // CATALOG VERSION
+    // Tells LambdaGetPhotosDB that the listing changed (its cached pages and ETags become stale).
+    // Called in the same transaction as the write, so readers never see the new version without the new data.
+    private static void bumpCatalogVersion(Connection conn) throws SQLException {
+        Database.prepare(conn, "UPDATE CatalogVersion SET Version = Version + 1 WHERE ID = 1").executeUpdate();
     }
 
-}
\ No newline at end of file
+}
@@ -48,6 +48,14 @@ Finally, this lambda create a JSON object (response body) containing the validat
 public class LambdaTokenChecker implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
 
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaTokenChecker", () -> {
+            generateSecureToken("priming@cloud26", "priming", null);
+            new JSONObject("{\"email\": \"priming@cloud26\", \"token\": \"\"}").getString("token");
+        });
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
         LambdaLogger logger = context.getLogger();  
@@ -10,8 +10,10 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
+import software.amazon.awssdk.services.s3.model.S3Exception;
 /*
 Application Basic Workflow
 Frontend encode the image file to Base64 string -> send to Orchestrator Lambda
@@ -41,6 +43,19 @@ public class LambdaUploadObject implements RequestHandler<Map<String, Object>, S
             .build();
 
 
+    // PRIMING (see Priming): runs during the init phase, before a SnapStart snapshot is taken
+    static {
+        Priming.register("LambdaUploadObject", () -> {
+            // One request for a key that does not exist: signing, HTTP client and error unmarshalling
+            try {
+                s3Client.headObject(HeadObjectRequest.builder().bucket(BUCKET_NAME).key("priming").build());
+            } catch (S3Exception e) {
+                // 404 (403 without s3:ListBucket): expected
+            }
+            Base64.getDecoder().decode("cHJpbWluZw==");
+        });
+    }
+
     @Override
     public String handleRequest(Map<String, Object> input, Context context) {
         LambdaLogger logger = context.getLogger();